@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.latex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.mar9000.space2latex.StorageFormatReader;
+import org.mar9000.space2latex.utils.IOUtils;
+
+/**
+ * Time the choice of the handler of an element, the if/else chain formatNodes used before
+ * the handler registry against {@link Formatter#getHandler(Element)}. Only the dispatch is timed,
+ * not the formatting. The elements are taken from the page files given as arguments,
+ * from a sample page without arguments.
+ */
+public class DispatchBenchmark {
+
+	private static final String SAMPLE = "<p>Text with <strong>bold</strong>, <em>emphasis</em> and <span style=\"color: rgb(255,0,0);\">color</span>.</p>"
+			+ "<h2>Title</h2><p><ac:link><ri:page ri:content-title=\"Other\" /></ac:link> and <a href=\"http://example.com\">link</a>.</p>"
+			+ "<ul><li><p>One <code>code</code></p></li><li><p>Two<br /></p></li></ul>"
+			+ "<ac:structured-macro ac:name=\"code\"><ac:plain-text-body><![CDATA[int a = 0;]]></ac:plain-text-body></ac:structured-macro>"
+			+ "<ac:structured-macro ac:name=\"note\"><ac:rich-text-body><p>Note <u>underline</u> <s>strike</s></p></ac:rich-text-body></ac:structured-macro>"
+			+ "<table><tbody><tr><td><p><span>cell</span></p></td></tr></tbody></table>"
+			+ "<p><ac:image><ri:attachment ri:filename=\"image.png\" /></ac:image><sub>1</sub><sup>2</sup></p>";
+	private static final int ROUNDS = 10;
+	private static final int MIN_DISPATCHES = 5000000;
+
+	public static void main(String[] args) throws IOException {
+		List<Element> elements = new ArrayList<Element>();
+		if (args.length == 0) {
+			collect(new StorageFormatReader(SAMPLE), elements);
+		} else {
+			for (String arg : args) {
+				collect(StorageFormatReader.forPage(IOUtils.readWholeFile(new File(arg))), elements);
+			}
+		}
+		if (elements.size() == 0) {
+			System.out.println("No element to dispatch.");
+			return;
+		}
+		int repeat = Math.max(1, MIN_DISPATCHES / elements.size());
+		System.out.println("Elements: " + elements.size() + ", dispatches per round: " + (long)repeat * elements.size());
+		long sink = 0;
+		long chainBest = Long.MAX_VALUE;
+		long registryBest = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int r = 0; r < repeat; r++) {
+				for (Element element : elements) {
+					sink += chainBranch(element);
+				}
+			}
+			chainBest = Math.min(chainBest, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int r = 0; r < repeat; r++) {
+				for (Element element : elements) {
+					sink += Formatter.getHandler(element).hashCode() & 1;
+				}
+			}
+			registryBest = Math.min(registryBest, System.nanoTime() - start);
+		}
+		double dispatches = (double)repeat * elements.size();
+		System.out.println(String.format("if/else chain: %.1f ns/element", chainBest / dispatches));
+		System.out.println(String.format("registry:      %.1f ns/element", registryBest / dispatches));
+		System.out.println("(" + sink + ")");
+	}
+
+	/**
+	 * The elements that formatNodes supports, as formatNodes would meet them.
+	 */
+	private static void collect(StorageFormatReader reader, List<Element> elements) {
+		List<Node> nodes = null;
+		while ((nodes = reader.next()) != null) {
+			for (Node node : nodes) {
+				if (!(node instanceof Element))
+					continue;
+				for (Element element : ((Element)node).getAllElements()) {
+					if (chainBranch(element) != -1)
+						elements.add(element);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The conditions of the if/else chain of formatNodes, in order, return the branch taken
+	 * or -1 for elements not supported.
+	 */
+	private static int chainBranch(Element element) {
+		if (element.nodeName().equals("p")) {
+			return 0;
+		} else if (element.nodeName().equals("h1")) {
+			return 1;
+		} else if (element.nodeName().equals("h2")) {
+			return 2;
+		} else if (element.nodeName().equals("h3")) {
+			return 3;
+		} else if (element.nodeName().equals("h4")) {
+			return 4;
+		} else if (element.nodeName().equals("h5")) {
+			return 5;
+		} else if (element.nodeName().equals("h6")) {
+			return 6;
+		} else if (element.nodeName().equals("em")) {
+			return 7;
+		} else if (element.nodeName().equals("code")) {
+			return 8;
+		} else if (element.nodeName().equals("s")) {
+			return 9;
+		} else if (element.nodeName().equals("u")) {
+			return 10;
+		} else if (element.nodeName().equals("strong")) {
+			return 11;
+		} else if (element.nodeName().equals("a")) {
+			return 12;
+		} else if (element.nodeName().equals("ol")) {
+			return 13;
+		} else if (element.nodeName().equals("ul")) {
+			return 14;
+		} else if (element.nodeName().equals("li")) {
+			return 15;
+		} else if (element.nodeName().equals("div")) {
+			return 16;
+		} else if (element.nodeName().equals("br")) {
+			return 17;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("toc")) {
+			return 18;
+		} else if (element.nodeName().equals("ac:structured-macro") && element.attr("ac:name").equals("toc-zone")) {
+			return 19;
+		} else if ((element.nodeName().equals("ac:structured-macro") || element.nodeName().equals("ac:macro"))
+				&& element.attr("ac:name").equals("anchor")) {
+			return 20;
+		} else if (element.nodeName().equals("table")) {
+			return 21;
+		} else if (element.nodeName().equals("ac:link")) {
+			return 22;
+		} else if (element.nodeName().equals("hr")) {
+			return 23;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("code")) {
+			return 24;
+		} else if (element.nodeName().equals("ac:structured-macro") && element.attr("ac:name").equals("info")) {
+			return 25;
+		} else if (element.nodeName().equals("ac:macro") && element.attr("ac:name").equals("info")) {
+			return 26;
+		} else if (element.nodeName().equals("ac:rich-text-body")) {
+			return 27;
+		} else if ((element.nodeName().equals("ac:structured-macro") || element.nodeName().equals("ac:macro"))
+				&& element.attr("ac:name").equals("include")) {
+			return 28;
+		} else if (element.nodeName().equals("ac:structured-macro") && element.attr("ac:name").equals("section")) {
+			return 29;
+		} else if (element.nodeName().equals("ac:image")) {
+			return 30;
+		} else if (element.nodeName().equals("span")) {
+			return 31;
+		} else if (element.nodeName().equals("blockquote")) {
+			return 32;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("noformat")) {
+			return 33;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("tip")) {
+			return 34;
+		} else if ((element.nodeName().equals("ac:structured-macro") || element.nodeName().equals("ac:macro"))
+				&& element.attr("ac:name").equals("warning")) {
+			return 35;
+		} else if (element.nodeName().equals("ac:parameter") && element.attr("ac:name").equals("title")) {
+			return 36;
+		} else if (element.nodeName().equals("sub")) {
+			return 37;
+		} else if (element.nodeName().equals("sup")) {
+			return 38;
+		} else if (element.nodeName().equals("pre")) {
+			return 39;
+		} else if (element.nodeName().equals("ac:emoticon")) {
+			return 40;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("note")) {
+			return 41;
+		} else if (element.nodeName().equals("ac:macro") && element.attr("ac:name").equals("toc-zone")) {
+			return 42;
+		} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
+				&& element.attr("ac:name").equals("unmigrated-wiki-markup")) {
+			return 43;
+		} else if (element.nodeName().equals("ac:default-parameter")) {
+			return 44;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.mar9000.space2latex.utils.IOUtils;
+
+/**
+ * One file for each page into the download directory.
+ */
+public class PageDirectory implements PageStore {
+
+	private File dir = null;
+
+	public PageDirectory(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return new File(dir, name).exists();
+	}
+
+	@Override
+	public void write(String name, String id, String title, String content) throws IOException {
+		IOUtils.saveStringToFile(content, new File(dir, name));
+	}
+
+	@Override
+	public String read(String name) throws IOException {
+		return IOUtils.readWholeFile(new File(dir, name));
+	}
+
+	/**
+	 * Pages are saved with the default charset, see {@link IOUtils#saveStringToFile(String, File)}.
+	 */
+	@Override
+	public Reader openReader(String name) throws IOException {
+		return new InputStreamReader(new FileInputStream(new File(dir, name)), Charset.defaultCharset());
+	}
+
+	@Override
+	public String readFirstLine(String name) throws IOException {
+		return IOUtils.readFirstLine(new File(dir, name));
+	}
+
+	/**
+	 * Fails if the file is there and cannot be deleted.
+	 */
+	@Override
+	public void delete(String name) throws IOException {
+		Files.deleteIfExists(new File(dir, name).toPath());
+	}
+
+	@Override
+	public List<String> list() {
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(WikiPage.PAGE_EXTENSION);
+			}
+		});
+		List<String> result = new ArrayList<String>();
+		for (int n = 0; names != null && n < names.length; n++) {
+			result.add(names[n]);
+		}
+		// Same order whatever the file system.
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Not kept, size and modification time are not enough: a file saved again within
+	 * the resolution of its modification time with the same size would look unchanged.
+	 */
+	@Override
+	public String getContentHash(String name) {
+		return null;
+	}
+
+	@Override
+	public String getLocation(String name) {
+		return new File(dir, name).getAbsolutePath();
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.mar9000.space2latex.utils.IOUtils;
+import org.slf4j.Logger;
+
+/**
+ * Title, id, size, content hash and images of the saved pages, kept in a tab separated file
+ * next to them so that format knows the titles and the images without parsing every page.
+ * Each page line is followed by a line for each of its images.
+ * An entry is trusted while the page has the same content hash: the one kept by the store,
+ * see {@link PageStore#getContentHash(String)}, or the one of the page read again.
+ * Written by download and by the index command, format only reads it.
+ */
+public class PageIndex {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(PageIndex.class);
+
+	public static final String INDEX_FILE = "space2latex-index.txt";
+	private static final String VERSION_RECORD = "version";
+	// Indexes without images and with titles not escaped have no version line.
+	private static final String VERSION = "3";
+	private static final String PAGE_RECORD = "page";
+	private static final String IMAGE_RECORD = "image";
+	private static final String CHARSET = "UTF-8";
+
+	private File destDir = null;
+	// By page file name.
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	public static class Entry {
+		public String id = null;
+		public String title = null;
+		public long size = 0;
+		public String hash = null;
+		// Image files relative to the download directory, by ac:image element, see WikiPage.parseImages().
+		public Map<String, String> images = new LinkedHashMap<String, String>();
+
+		/**
+		 * The images of the page as format looks them up.
+		 */
+		public Map<String, WikiImage> getImages() {
+			Map<String, WikiImage> result = new HashMap<String, WikiImage>();
+			for (String acImage : images.keySet()) {
+				WikiImage image = new WikiImage();
+				image.filename = images.get(acImage);
+				result.put(acImage, image);
+			}
+			return result;
+		}
+	}
+
+	public PageIndex(File destDir) {
+		this.destDir = destDir;
+	}
+
+	public File getFile() {
+		return new File(destDir, INDEX_FILE);
+	}
+
+	/**
+	 * Return false if there is no index, or it has been written by an older version.
+	 */
+	public synchronized boolean load() throws IOException {
+		File file = getFile();
+		if (!file.exists())
+			return false;
+		List<String> lines = IOUtils.readCompleteLines(file);
+		if (lines.size() == 0 || !lines.get(0).equals(VERSION_RECORD + "\t" + VERSION)) {
+			LOGGER.info("Page index of an older version ignored: {}", file.getAbsolutePath());
+			return false;
+		}
+		for (String line : lines) {
+			String[] fields = line.split("\t", -1);
+			if (fields[0].equals(PAGE_RECORD) && fields.length == 6) {
+				Entry entry = new Entry();
+				entry.id = fields[2];
+				entry.title = IOUtils.unescapeField(fields[3]);
+				entry.size = Long.parseLong(fields[4]);
+				entry.hash = fields[5];
+				entries.put(fields[1], entry);
+			} else if (fields[0].equals(IMAGE_RECORD) && fields.length == 4 && entries.containsKey(fields[1])) {
+				entries.get(fields[1]).images.put(IOUtils.unescapeField(fields[2]), IOUtils.unescapeField(fields[3]));
+			}
+		}
+		LOGGER.info("Page index loaded: {} pages", entries.size());
+		return true;
+	}
+
+	public synchronized Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Return the entry of the page if it still matches the page saved, null otherwise.
+	 * The page is read only if the store does not keep its content hash.
+	 */
+	public Entry getValidEntry(PageStore store, String name) throws IOException {
+		Entry entry = getEntry(name);
+		if (entry == null)
+			return null;
+		String hash = store.getContentHash(name);
+		if (hash == null) {
+			byte[] bytes = store.read(name).getBytes(CHARSET);
+			if (bytes.length != entry.size)
+				return null;
+			hash = IOUtils.sha256(bytes);
+		}
+		return hash.equals(entry.hash) ? entry : null;
+	}
+
+	/**
+	 * Bring the index up to date with the pages of the store, return the number of pages read again.
+	 */
+	public synchronized int update(PageStore store) throws IOException {
+		Map<String, Entry> updated = new HashMap<String, Entry>();
+		int read = 0;
+		for (String name : store.list()) {
+			Entry entry = getValidEntry(store, name);
+			if (entry == null) {
+				entry = index(store, name);
+				read++;
+			}
+			if (entry != null)
+				updated.put(name, entry);
+		}
+		entries = updated;
+		return read;
+	}
+
+	/**
+	 * Return the entry of a saved page, null if not a page file.
+	 */
+	private static Entry index(PageStore store, String name) throws IOException {
+		String content = store.read(name);
+		String[] header = WikiPage.readHeader(content);
+		if (header == null) {
+			LOGGER.warn("Not a page file, not indexed: {}", store.getLocation(name));
+			return null;
+		}
+		Entry entry = new Entry();
+		entry.title = header[0];
+		entry.id = header[1];
+		byte[] bytes = content.getBytes(CHARSET);
+		entry.size = bytes.length;
+		entry.hash = IOUtils.sha256(bytes);
+		Map<String, WikiImage> images = WikiPage.parseImages(content);
+		for (String acImage : images.keySet()) {
+			entry.images.put(acImage, images.get(acImage).filename);
+		}
+		return entry;
+	}
+
+	/**
+	 * Write to a temporary file then rename, an interrupted save leaves the previous index.
+	 */
+	public synchronized void save() throws IOException {
+		File tmpFile = new File(destDir, INDEX_FILE + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), CHARSET));
+		try {
+			writer.write(VERSION_RECORD + "\t" + VERSION + "\n");
+			for (String name : entries.keySet()) {
+				Entry entry = entries.get(name);
+				writer.write(PAGE_RECORD + "\t" + name + "\t" + entry.id + "\t" + IOUtils.escapeField(entry.title)
+						+ "\t" + entry.size + "\t" + entry.hash + "\n");
+				for (String acImage : entry.images.keySet()) {
+					writer.write(IMAGE_RECORD + "\t" + name + "\t" + IOUtils.escapeField(acImage)
+							+ "\t" + IOUtils.escapeField(entry.images.get(acImage)) + "\n");
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		IOUtils.replaceFile(tmpFile, getFile());
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.slf4j.Logger;
+
+/**
+ * Read the pages saved by download for format, with more threads if requested.
+ * Pages are returned in the order of their names whatever the thread that loaded them,
+ * so that format gives the same result with any number of threads.
+ * Only the headers of the pages are read, or nothing if found into the page index, a page
+ * is read when the formatter needs it: its images and content are then read at once and the
+ * content is parsed while formatted, see {@link StorageFormatReader}.
+ */
+public class PageLoader {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(PageLoader.class);
+
+	private PageStore store = null;
+	private int threads = 1;
+	private PageIndex index = null;
+	private AtomicInteger indexed = new AtomicInteger();
+
+	public PageLoader(PageStore store, int threads) {
+		this.store = store;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Titles and ids are taken from index for the pages it still matches.
+	 */
+	public void setIndex(PageIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Load the named pages, stop at the first page that cannot be loaded.
+	 */
+	public List<WikiPage> load(List<String> pageNames) throws IOException {
+		long startTime = System.currentTimeMillis();
+		List<WikiPage> result = new ArrayList<WikiPage>(pageNames.size());
+		if (threads == 1 || pageNames.size() < 2) {
+			for (String pageName : pageNames) {
+				result.add(load(pageName));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, pageNames.size()));
+			try {
+				List<Future<WikiPage>> futures = new ArrayList<Future<WikiPage>>(pageNames.size());
+				for (final String pageName : pageNames) {
+					futures.add(executor.submit(new Callable<WikiPage>() {
+						@Override
+						public WikiPage call() throws Exception {
+							return load(pageName);
+						}
+					}));
+				}
+				for (Future<WikiPage> future : futures) {
+					result.add(getPage(future));
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		LOGGER.info("Pages loaded: {} in {} ms with {} threads", new Object[]{result.size()
+				, System.currentTimeMillis() - startTime, threads});
+		if (index != null)
+			LOGGER.info("Pages found into the page index: {} of {}", indexed.get(), result.size());
+		return result;
+	}
+
+	private WikiPage load(String pageName) throws IOException {
+		try {
+			PageIndex.Entry entry = index != null ? index.getValidEntry(store, pageName) : null;
+			WikiPage page = null;
+			if (entry != null) {
+				page = WikiPage.loadForFormat(store, pageName, entry);
+				indexed.incrementAndGet();
+			} else {
+				page = WikiPage.loadHeaderForFormat(store, pageName);
+			}
+			return page;
+		} catch (Exception e) {
+			throw new IOException("Error loading file: " + store.getLocation(pageName), e);
+		}
+	}
+
+	private static WikiPage getPage(Future<WikiPage> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Page loading interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mar9000.space2latex.utils.IOUtils;
+
+/**
+ * All the pages into a single data file, with an index file giving for each page name
+ * its id, title, the offset and length of its content into the data file and its content hash.
+ * Pages are appended to the data file, a page saved again or deleted leaves its old content
+ * unreferenced until the pack is compacted. The index is append only while the pack is written,
+ * the last line of a page wins, and it is rewritten with only the current pages on close.
+ * Images are not packed, they are saved into the download directory as without pack.
+ * A pack opened read only is memory mapped, only the pages read are decoded and pages
+ * can be read by many threads at the same time.
+ * Compaction writes the new data and the new index to temporary files, moves the data into
+ * place and then the index. A compaction interrupted before the data move is discarded,
+ * one interrupted after it is completed when the pack is opened again for writing. A pack opened
+ * read only is never changed, it reads the index of an interrupted compaction if its data is in place.
+ */
+public class PagePack implements PageStore {
+
+	public static final String DATA_FILE = "space2latex-pages.pack";
+	public static final String INDEX_FILE = "space2latex-pages.idx";
+	private static final String PAGE_RECORD = "page";
+	private static final String REMOVED_RECORD = "removed";
+	private static final String CHARSET = "UTF-8";
+	private static final String TMP_SUFFIX = ".tmp";
+	// Index of a compaction, complete before the new data is moved into place.
+	private static final String COMPACT_SUFFIX = ".compact";
+
+	private File dir = null;
+	private boolean readOnly = false;
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private RandomAccessFile data = null;
+	private Writer index = null;
+	// Read only packs, null if too big to be mapped at once.
+	private MappedByteBuffer map = null;
+
+	public static class Entry {
+		public String id = null;
+		public String title = null;
+		public long offset = 0;
+		public int length = 0;
+		// Null for pages written before the hash was kept.
+		public String hash = null;
+	}
+
+	/**
+	 * Open the pack into dir, created if missing unless readOnly.
+	 */
+	public PagePack(File dir, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.readOnly = readOnly;
+		File indexFile = new File(dir, INDEX_FILE);
+		if (!readOnly) {
+			recoverCompaction(dir);
+		} else if (isDataCompacted(dir)) {
+			// Nothing written when read only, the index of the compaction is the one of the data.
+			indexFile = new File(dir, INDEX_FILE + COMPACT_SUFFIX);
+		}
+		long dataLength = new File(dir, DATA_FILE).length();
+		if (indexFile.exists()) {
+			for (String line : IOUtils.readCompleteLines(indexFile)) {
+				String[] fields = line.split("\t", -1);
+				if (fields[0].equals(PAGE_RECORD) && (fields.length == 6 || fields.length == 7)) {
+					Entry entry = new Entry();
+					entry.id = fields[2];
+					entry.title = IOUtils.unescapeField(fields[3]);
+					entry.offset = Long.parseLong(fields[4]);
+					entry.length = Integer.parseInt(fields[5]);
+					if (fields.length == 7)
+						entry.hash = fields[6];
+					// Data lost by a crash, the index line reached the disk but not the data.
+					if (entry.offset + entry.length > dataLength)
+						continue;
+					entries.remove(fields[1]);
+					entries.put(fields[1], entry);
+				} else if (fields[0].equals(REMOVED_RECORD) && fields.length == 2) {
+					entries.remove(fields[1]);
+				}
+			}
+		} else if (readOnly) {
+			throw new IOException("Page pack not found: " + indexFile.getAbsolutePath());
+		}
+		data = new RandomAccessFile(new File(dir, DATA_FILE), readOnly ? "r" : "rw");
+		if (!readOnly)
+			index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), CHARSET));
+		else if (data.length() <= Integer.MAX_VALUE)
+			map = data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, data.length());
+	}
+
+	/**
+	 * Complete or discard a compaction interrupted by a crash: the new data is in place only if
+	 * its temporary file is gone.
+	 */
+	private static void recoverCompaction(File dir) throws IOException {
+		File newData = new File(dir, DATA_FILE + TMP_SUFFIX);
+		File newIndex = new File(dir, INDEX_FILE + COMPACT_SUFFIX);
+		if (isDataCompacted(dir)) {
+			IOUtils.replaceFile(newIndex, new File(dir, INDEX_FILE));
+		} else {
+			newIndex.delete();
+			newData.delete();
+		}
+	}
+
+	/**
+	 * True if a compaction was interrupted after its data was moved into place, before its index.
+	 */
+	private static boolean isDataCompacted(File dir) {
+		return new File(dir, INDEX_FILE + COMPACT_SUFFIX).exists() && !new File(dir, DATA_FILE + TMP_SUFFIX).exists();
+	}
+
+	/**
+	 * True if the download directory holds a pack.
+	 */
+	public static boolean exists(File dir) {
+		return new File(dir, INDEX_FILE).exists();
+	}
+
+	@Override
+	public synchronized boolean exists(String name) {
+		return entries.containsKey(name);
+	}
+
+	public synchronized Entry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	@Override
+	public synchronized void write(String name, String id, String title, String content) throws IOException {
+		byte[] bytes = content.getBytes(CHARSET);
+		Entry entry = new Entry();
+		entry.id = id;
+		entry.title = title;
+		entry.offset = data.length();
+		entry.length = bytes.length;
+		entry.hash = IOUtils.sha256(bytes);
+		data.seek(entry.offset);
+		data.write(bytes);
+		// The content is written before the index line that references it, the line of a content
+		// that did not reach the disk is dropped when the pack is opened again.
+		index.write(indexRecord(name, entry) + "\n");
+		index.flush();
+		entries.remove(name);
+		entries.put(name, entry);
+	}
+
+	/**
+	 * Titles are escaped, a tab or a line end of a title would break the line.
+	 */
+	private static String indexRecord(String name, Entry entry) {
+		return PAGE_RECORD + "\t" + name + "\t" + entry.id + "\t" + IOUtils.escapeField(entry.title)
+				+ "\t" + entry.offset + "\t" + entry.length + (entry.hash != null ? "\t" + entry.hash : "");
+	}
+
+	@Override
+	public String read(String name) throws IOException {
+		Entry entry = getEntry(name);
+		if (entry == null)
+			throw new IOException("Page " + name + " not found into " + getLocation(name));
+		if (map != null) {
+			// A view of its own for each read, the mapped buffer itself is never moved.
+			ByteBuffer bytes = map.duplicate();
+			bytes.position((int)entry.offset);
+			bytes.limit((int)entry.offset + entry.length);
+			return Charset.forName(CHARSET).decode(bytes).toString();
+		}
+		return readBytes(entry);
+	}
+
+	@Override
+	public Reader openReader(String name) throws IOException {
+		Entry entry = getEntry(name);
+		if (entry == null)
+			throw new IOException("Page " + name + " not found into " + getLocation(name));
+		return new InputStreamReader(new EntryInputStream(entry), CHARSET);
+	}
+
+	/**
+	 * The content of a page read a chunk at a time, from a view of its own of the mapped
+	 * data or from the data file.
+	 */
+	private class EntryInputStream extends InputStream {
+
+		private ByteBuffer bytes = null;
+		private long position = 0;
+		private long end = 0;
+
+		EntryInputStream(Entry entry) {
+			position = entry.offset;
+			end = entry.offset + entry.length;
+			if (map != null) {
+				bytes = map.duplicate();
+				bytes.position((int)entry.offset);
+				bytes.limit((int)end);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+			int n = (int)Math.min(len, end - position);
+			if (bytes != null) {
+				bytes.get(b, off, n);
+			} else {
+				synchronized (PagePack.this) {
+					data.seek(position);
+					data.readFully(b, off, n);
+				}
+			}
+			position += n;
+			return n;
+		}
+
+	}
+
+	@Override
+	public String readFirstLine(String name) throws IOException {
+		Entry entry = getEntry(name);
+		if (entry == null)
+			throw new IOException("Page " + name + " not found into " + getLocation(name));
+		if (map == null) {
+			String content = readBytes(entry);
+			int end = content.indexOf('\n');
+			return end != -1 ? content.substring(0, end) : content;
+		}
+		ByteBuffer bytes = map.duplicate();
+		int end = (int)entry.offset;
+		while (end < entry.offset + entry.length && bytes.get(end) != '\n')
+			end++;
+		bytes.position((int)entry.offset);
+		bytes.limit(end);
+		return Charset.forName(CHARSET).decode(bytes).toString();
+	}
+
+	private synchronized String readBytes(Entry entry) throws IOException {
+		byte[] bytes = new byte[entry.length];
+		data.seek(entry.offset);
+		data.readFully(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	@Override
+	public synchronized void delete(String name) throws IOException {
+		if (entries.remove(name) == null)
+			return;
+		index.write(REMOVED_RECORD + "\t" + name + "\n");
+		index.flush();
+	}
+
+	@Override
+	public synchronized List<String> list() {
+		List<String> names = new ArrayList<String>(entries.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Kept into the index since the page was written.
+	 */
+	@Override
+	public String getContentHash(String name) {
+		Entry entry = getEntry(name);
+		return entry != null ? entry.hash : null;
+	}
+
+	@Override
+	public String getLocation(String name) {
+		return new File(dir, DATA_FILE).getAbsolutePath() + "#" + name;
+	}
+
+	/**
+	 * Write the data of the current pages only to a new pack, then replace this one with it.
+	 * Return the bytes freed.
+	 */
+	public synchronized long compact() throws IOException {
+		File newData = new File(dir, DATA_FILE + TMP_SUFFIX);
+		RandomAccessFile out = new RandomAccessFile(newData, "rw");
+		Map<String, Entry> newEntries = new LinkedHashMap<String, Entry>();
+		try {
+			out.setLength(0);
+			for (String name : entries.keySet()) {
+				Entry entry = entries.get(name);
+				byte[] bytes = new byte[entry.length];
+				data.seek(entry.offset);
+				data.readFully(bytes);
+				Entry newEntry = new Entry();
+				newEntry.id = entry.id;
+				newEntry.title = entry.title;
+				newEntry.offset = out.getFilePointer();
+				newEntry.length = entry.length;
+				// Pages of older packs get their hash.
+				newEntry.hash = entry.hash != null ? entry.hash : IOUtils.sha256(bytes);
+				out.write(bytes);
+				newEntries.put(name, newEntry);
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		long freed = data.length() - newData.length();
+		// The new index is complete before the new data is moved into place, see recoverCompaction().
+		File newIndex = new File(dir, INDEX_FILE + COMPACT_SUFFIX);
+		writeIndex(newEntries, newIndex);
+		data.close();
+		index.close();
+		File dataFile = new File(dir, DATA_FILE);
+		IOUtils.replaceFile(newData, dataFile);
+		IOUtils.replaceFile(newIndex, new File(dir, INDEX_FILE));
+		entries = newEntries;
+		data = new RandomAccessFile(dataFile, "rw");
+		index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX_FILE), true), CHARSET));
+		return freed;
+	}
+
+	/**
+	 * Write the index of entries to file, forced to disk.
+	 */
+	private static void writeIndex(Map<String, Entry> entries, File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+		try {
+			for (String name : entries.keySet()) {
+				writer.write(indexRecord(name, entries.get(name)) + "\n");
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Replace the index with the current pages only.
+	 */
+	private void writeIndex() throws IOException {
+		File tmpFile = new File(dir, INDEX_FILE + TMP_SUFFIX);
+		writeIndex(entries, tmpFile);
+		IOUtils.replaceFile(tmpFile, new File(dir, INDEX_FILE));
+	}
+
+	/**
+	 * Force the data to disk and rewrite the index with the current pages only.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (data == null)
+			return;
+		if (!readOnly) {
+			data.getFD().sync();
+			index.close();
+			writeIndex();
+		}
+		data.close();
+		data = null;
+		map = null;
+	}
+
+}
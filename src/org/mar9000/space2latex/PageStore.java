@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Where the downloaded pages are saved and read back by format, by page file name
+ * ("page-" + page name + ".html"). Images are not kept by the store, they are saved
+ * into the download directory.
+ */
+public interface PageStore {
+
+	public boolean exists(String name);
+
+	public void write(String name, String id, String title, String content) throws IOException;
+
+	public String read(String name) throws IOException;
+
+	/**
+	 * The content of a saved page as a stream, to be closed by the caller.
+	 */
+	public Reader openReader(String name) throws IOException;
+
+	/**
+	 * The first line of a saved page, its header, without reading the rest of the page.
+	 */
+	public String readFirstLine(String name) throws IOException;
+
+	/**
+	 * Remove a page, does nothing if not saved.
+	 */
+	public void delete(String name) throws IOException;
+
+	/**
+	 * The names of the pages saved, sorted.
+	 */
+	public List<String> list();
+
+	/**
+	 * The SHA-256 of the page content as {@link org.mar9000.space2latex.utils.IOUtils#sha256(byte[])},
+	 * if kept by the store, null if the page has to be read to know it.
+	 */
+	public String getContentHash(String name);
+
+	/**
+	 * Where the page is saved, for messages.
+	 */
+	public String getLocation(String name);
+
+	public void close() throws IOException;
+
+}
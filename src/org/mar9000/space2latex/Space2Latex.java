@@ -16,9 +16,11 @@
  */
 package org.mar9000.space2latex;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -28,16 +30,27 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
+import org.mar9000.space2latex.download.BlobStore;
+import org.mar9000.space2latex.download.DownloadJournal;
+import org.mar9000.space2latex.download.DownloadStats;
+import org.mar9000.space2latex.download.OwnerPageCache;
+import org.mar9000.space2latex.download.PageDownloader;
+import org.mar9000.space2latex.download.PageManifest;
 import org.mar9000.space2latex.latex.Chapter;
 import org.mar9000.space2latex.latex.Formatter;
 import org.mar9000.space2latex.latex.LatexDocument;
 import org.mar9000.space2latex.latex.Part;
+import org.mar9000.space2latex.latex.SpanStyle;
 import org.mar9000.space2latex.latex.TOC;
 import org.mar9000.space2latex.log.S2LLogUtils;
+import org.mar9000.space2latex.utils.ConcurrencyLimiter;
 import org.mar9000.space2latex.utils.ConfluenceRESTUtils;
+import org.mar9000.space2latex.utils.HttpClient;
+import org.mar9000.space2latex.utils.RetryPolicy;
 import org.mar9000.space2latex.utils.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.stringtemplate.v4.AutoIndentWriter;
 import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.STGroup;
 import org.stringtemplate.v4.STGroupFile;
@@ -65,8 +78,25 @@ public class Space2Latex {
 	public final static String SWITCH_LIMIT = "--limit";
 	public final static String SWITCH_INCLUDE_ALL = "--include-all";
 	public final static String SWITCH_DOCUMENTS_DEF = "--documents-def";
+	public final static String SWITCH_THREADS = "--threads";
+	public final static String SWITCH_PREFETCH = "--prefetch";
+	public final static String SWITCH_HTTP_POOL = "--http-pool";
+	public final static String SWITCH_HTTP_TIMEOUT = "--http-timeout";
+	public final static String SWITCH_HTTP_KEEP_ALIVE = "--http-keep-alive";
+	public final static String SWITCH_RETRY_ATTEMPTS = "--retry-attempts";
+	public final static String SWITCH_RETRY_BASE_DELAY = "--retry-base-delay";
+	public final static String SWITCH_RETRY_MAX_DELAY = "--retry-max-delay";
+	public final static String SWITCH_RETRY_MAX_ELAPSED = "--retry-max-elapsed";
+	public final static String SWITCH_MAX_CONCURRENCY = "--max-concurrency";
+	public final static String SWITCH_INCREMENTAL = "--incremental";
+	public final static String SWITCH_OWNER_CACHE = "--owner-cache";
+	public final static String SWITCH_DEDUP = "--dedup";
+	public final static String SWITCH_RESUME = "--resume";
+	public final static String SWITCH_PACK = "--pack";
 	public final static String COMMAND_DOWNLOAD = "download";
 	public final static String COMMAND_FORMAT = "format";
+	public final static String COMMAND_PACK = "pack";
+	public final static String COMMAND_INDEX = "index";
 	private HashMap<String, String> params = new HashMap<String, String>();
 	private List<String> excludes = new ArrayList<String>();
 	public Space2Latex(String[] args) {
@@ -93,6 +123,36 @@ public class Space2Latex {
 				params.put(SWITCH_INCLUDE_ALL, getParameterValue(args[i]));
 			} else if (args[i].startsWith(SWITCH_LIMIT)) {
 				params.put(SWITCH_LIMIT, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_THREADS)) {
+				params.put(SWITCH_THREADS, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_PREFETCH)) {
+				params.put(SWITCH_PREFETCH, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_HTTP_POOL)) {
+				params.put(SWITCH_HTTP_POOL, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_HTTP_TIMEOUT)) {
+				params.put(SWITCH_HTTP_TIMEOUT, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_HTTP_KEEP_ALIVE)) {
+				params.put(SWITCH_HTTP_KEEP_ALIVE, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_RETRY_ATTEMPTS)) {
+				params.put(SWITCH_RETRY_ATTEMPTS, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_RETRY_BASE_DELAY)) {
+				params.put(SWITCH_RETRY_BASE_DELAY, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_RETRY_MAX_DELAY)) {
+				params.put(SWITCH_RETRY_MAX_DELAY, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_RETRY_MAX_ELAPSED)) {
+				params.put(SWITCH_RETRY_MAX_ELAPSED, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_MAX_CONCURRENCY)) {
+				params.put(SWITCH_MAX_CONCURRENCY, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_INCREMENTAL)) {
+				params.put(SWITCH_INCREMENTAL, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_OWNER_CACHE)) {
+				params.put(SWITCH_OWNER_CACHE, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_DEDUP)) {
+				params.put(SWITCH_DEDUP, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_RESUME)) {
+				params.put(SWITCH_RESUME, getParameterValue(args[i]));
+			} else if (args[i].startsWith(SWITCH_PACK)) {
+				params.put(SWITCH_PACK, getParameterValue(args[i]));
 			}
 			i++;
 		}
@@ -105,6 +165,10 @@ public class Space2Latex {
 				executeDownload();
 			} else if (command.equals(COMMAND_FORMAT)) {
 				executeFormat();
+			} else if (command.equals(COMMAND_PACK)) {
+				executePack();
+			} else if (command.equals(COMMAND_INDEX)) {
+				executeIndex();
 			} else {
 				showUsage();
 				showError("Command " + command + " unknown.");
@@ -138,16 +202,240 @@ public class Space2Latex {
 		int limit = params.get(SWITCH_LIMIT) != null ?
 				Integer.parseInt(params.get(SWITCH_LIMIT)) : ConfluenceRESTUtils.LIMIT_FOR_REQUEST;
 		LOGGER.debug("Download limits: start={}, limit={}", new Object[]{start, limit});
+		int threads = params.get(SWITCH_THREADS) != null ?
+				Integer.parseInt(params.get(SWITCH_THREADS)) : 1;
+		int prefetch = params.get(SWITCH_PREFETCH) != null ?
+				Integer.parseInt(params.get(SWITCH_PREFETCH)) : 1;
+		// Connections used at the same time: page workers plus listing requests.
+		int httpPool = params.get(SWITCH_HTTP_POOL) != null ?
+				Integer.parseInt(params.get(SWITCH_HTTP_POOL)) : Math.max(HttpClient.DEFAULT_POOL_SIZE, threads + prefetch);
+		int httpTimeout = params.get(SWITCH_HTTP_TIMEOUT) != null ?
+				Integer.parseInt(params.get(SWITCH_HTTP_TIMEOUT)) : HttpClient.DEFAULT_TIMEOUT;
+		HttpClient.configure(httpPool, httpTimeout, !"false".equals(params.get(SWITCH_HTTP_KEEP_ALIVE)));
+		int retryAttempts = params.get(SWITCH_RETRY_ATTEMPTS) != null ?
+				Integer.parseInt(params.get(SWITCH_RETRY_ATTEMPTS)) : RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+		long retryBaseDelay = params.get(SWITCH_RETRY_BASE_DELAY) != null ?
+				Long.parseLong(params.get(SWITCH_RETRY_BASE_DELAY)) : RetryPolicy.DEFAULT_BASE_DELAY;
+		long retryMaxDelay = params.get(SWITCH_RETRY_MAX_DELAY) != null ?
+				Long.parseLong(params.get(SWITCH_RETRY_MAX_DELAY)) : RetryPolicy.DEFAULT_MAX_DELAY;
+		long retryMaxElapsed = params.get(SWITCH_RETRY_MAX_ELAPSED) != null ?
+				Long.parseLong(params.get(SWITCH_RETRY_MAX_ELAPSED)) : RetryPolicy.DEFAULT_MAX_ELAPSED;
+		RetryPolicy.configure(retryAttempts, retryBaseDelay, retryMaxDelay, retryMaxElapsed);
+		int maxConcurrency = params.get(SWITCH_MAX_CONCURRENCY) != null ?
+				Integer.parseInt(params.get(SWITCH_MAX_CONCURRENCY)) : threads + prefetch;
+		ConcurrencyLimiter.configure(maxConcurrency);
+		// Versions and validators of what has been saved by the last download.
+		// Incremental download: only pages and images whose version changed since the last download.
+		boolean incremental = "true".equals(params.get(SWITCH_INCREMENTAL));
+		// Pages saved into a single pack file, always once the download directory has one.
+		PageStore store = null;
 		try {
-			ConfluenceRESTUtils.getPages(url, start, limit, destDir);
+			if ("true".equals(params.get(SWITCH_PACK)) || PagePack.exists(destDir)) {
+				store = new PagePack(destDir, false);
+				LOGGER.info("Pages saved into: {}", new File(destDir, PagePack.DATA_FILE).getAbsolutePath());
+			} else {
+				store = new PageDirectory(destDir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error opening page pack: " + new File(destDir, PagePack.DATA_FILE).getAbsolutePath());
+		}
+		PageManifest manifest = new PageManifest(destDir, store, incremental);
+		String expand = incremental ? ConfluenceRESTUtils.INCREMENTAL_LISTING_EXPAND : ConfluenceRESTUtils.LISTING_EXPAND;
+		try {
+			manifest.load();
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error loading manifest: " + manifest.getFile().getAbsolutePath());
+		}
+		// Pages owning images referenced by other pages, looked up once per download or kept on disk.
+		boolean ownerCache = "true".equals(params.get(SWITCH_OWNER_CACHE));
+		if (ownerCache) {
+			File ownerCacheFile = new File(destDir, OwnerPageCache.CACHE_FILE);
+			try {
+				OwnerPageCache.load(ownerCacheFile);
+			} catch (IOException e) {
+				e.printStackTrace();
+				showError("Error loading owner pages: " + ownerCacheFile.getAbsolutePath());
+			}
+		}
+		// Images saved once by content instead of into the directory of every page.
+		if ("true".equals(params.get(SWITCH_DEDUP)))
+			BlobStore.configure(destDir);
+		// Journal of the pages saved, to resume the download if stopped before the end.
+		DownloadJournal journal = new DownloadJournal(destDir, url, start, limit, ConfluenceRESTUtils.LIMIT_FOR_REQUEST);
+		try {
+			boolean resumed = "true".equals(params.get(SWITCH_RESUME)) && journal.load(manifest);
+			if (resumed) {
+				start = journal.getOffset();
+				limit = journal.getRemaining();
+				LOGGER.info("Resume download from offset {}, {} pages remaining", start, limit);
+			} else if ("true".equals(params.get(SWITCH_RESUME))) {
+				LOGGER.info("No download to resume.");
+			}
+			journal.open(resumed);
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error opening journal: " + journal.getFile().getAbsolutePath());
+		}
+		DownloadStats.start();
+		PageDownloader downloader = new PageDownloader(destDir, store, threads, manifest, journal);
+		boolean complete = false;
+		try {
+			complete = ConfluenceRESTUtils.getPages(url, start, limit, downloader, prefetch, expand);
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 			showError("MalformedURLException for URL: " + url);
+		} finally {
+			downloader.finish();
+			saveManifest(manifest, incremental && complete && start == 0);
+			updateIndex(store, destDir);
+			closeStore(store, destDir);
+			finishJournal(journal, journal.isFinished(complete));
+			if (ownerCache) {
+				try {
+					OwnerPageCache.save();
+				} catch (IOException e) {
+					e.printStackTrace();
+					showError("Error saving owner pages: " + new File(destDir, OwnerPageCache.CACHE_FILE).getAbsolutePath());
+				}
+			}
+		}
+		DownloadStats.logSummary(LOGGER);
+		if (DownloadStats.getFailedPagesCount() > 0)
+			showError(DownloadStats.getFailedPagesCount() + " pages not downloaded, see errors above.");
+	}
+	
+	/**
+	 * Pages missing from a complete listing have been deleted upstream, remove them too.
+	 */
+	private void saveManifest(PageManifest manifest, boolean removeUnseen) {
+		try {
+			if (removeUnseen) {
+				for (String title : manifest.removeUnseenPages()) {
+					LOGGER.info("Page removed: {}", title);
+				}
+			} else if (manifest.isIncremental()) {
+				LOGGER.info("Listing not read to the end, pages deleted upstream are not removed.");
+			}
+			manifest.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error saving manifest: " + manifest.getFile().getAbsolutePath());
+		}
+	}
+	
+	private void closeStore(PageStore store, File destDir) {
+		try {
+			store.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error closing page pack: " + new File(destDir, PagePack.DATA_FILE).getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Convert the page files of the download directory to a page pack, or compact the pack
+	 * if already converted. Images are left where they are.
+	 */
+	private void executePack() {
+		String destDirName = params.get(SWITCH_DEST_DIR);
+		if (destDirName == null)
+			destDirName = ".";
+		destDir = new File(destDirName);
+		if (!destDir.isDirectory())
+			showError("Destination directory " + destDirName + " is not a directory.");
+		PageDirectory directory = new PageDirectory(destDir);
+		PagePack pack = null;
+		String name = null;
+		try {
+			pack = new PagePack(destDir, false);
+			List<String> names = directory.list();
+			for (int n = 0; n < names.size(); n++) {
+				name = names.get(n);
+				String content = directory.read(name);
+				String[] header = WikiPage.readHeader(content);
+				if (header == null) {
+					LOGGER.warn("Not a page file, skipped: {}", directory.getLocation(name));
+					continue;
+				}
+				pack.write(name, header[1], header[0], content);
+			}
+			name = null;
+			long freed = pack.compact();
+			updateIndex(pack, destDir);
+			pack.close();
+			// The pack is complete, page files are no more needed.
+			for (int n = 0; n < names.size(); n++) {
+				if (pack.exists(names.get(n)))
+					directory.delete(names.get(n));
+			}
+			LOGGER.info("Page files packed: {}, pages into the pack: {}, bytes freed by compaction: {}"
+					, new Object[]{names.size(), pack.list().size(), freed});
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error packing " + (name != null ? directory.getLocation(name)
+					: new File(destDir, PagePack.DATA_FILE).getAbsolutePath()));
+		}
+	}
+	
+	/**
+	 * Write the page index of the download directory, see {@link PageIndex}.
+	 */
+	private void executeIndex() {
+		String destDirName = params.get(SWITCH_DEST_DIR);
+		if (destDirName == null)
+			destDirName = ".";
+		destDir = new File(destDirName);
+		if (!destDir.isDirectory())
+			showError("Destination directory " + destDirName + " is not a directory.");
+		PageStore store = null;
+		try {
+			store = PagePack.exists(destDir) ? new PagePack(destDir, true) : new PageDirectory(destDir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error opening page pack: " + new File(destDir, PagePack.DATA_FILE).getAbsolutePath());
+		}
+		updateIndex(store, destDir);
+		closeStore(store, destDir);
+	}
+	
+	/**
+	 * Bring the page index up to date with the pages saved, only changed pages are read.
+	 */
+	private void updateIndex(PageStore store, File destDir) {
+		PageIndex index = new PageIndex(destDir);
+		try {
+			index.load();
+			int read = index.update(store);
+			index.save();
+			LOGGER.info("Page index saved: {} pages, {} read again", index.size(), read);
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error writing page index: " + index.getFile().getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Remove the journal of a completed download, otherwise keep it to resume the download.
+	 */
+	private void finishJournal(DownloadJournal journal, boolean completed) {
+		try {
+			if (completed) {
+				journal.delete();
+			} else {
+				journal.close();
+				LOGGER.info("Download not completed, continue it with {}=true", SWITCH_RESUME);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error writing journal: " + journal.getFile().getAbsolutePath());
 		}
 	}
 	
 	private boolean createMissingChapters = false;
-	private File[] pageFiles = null;
+	private int threads = 1;
+	private List<String> pageNames = null;
 	private File destDir = null;
 	private File latexDir = null;
 	private WikiPages pages = null;
@@ -187,27 +475,38 @@ public class Space2Latex {
 		// Create missing chapter?
 		createMissingChapters = params.get(SWITCH_INCLUDE_ALL).equals("true");
 		
-		// Load page files from dir. used during download.
-		pageFiles = destDir.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.endsWith(WikiPage.PAGE_EXTENSION);
-			}
-		});
-		// First load all pages, needed to resolve "include" macros.
+		// Load pages saved by download, into a pack or one file each.
+		PageStore store = null;
+		try {
+			store = PagePack.exists(destDir) ? new PagePack(destDir, true) : new PageDirectory(destDir);
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError("Error opening page pack: " + new File(destDir, PagePack.DATA_FILE).getAbsolutePath());
+		}
+		pageNames = store.list();
+		// First load all pages, needed to resolve "include" macros. Pages are read when formatted.
+		threads = params.get(SWITCH_THREADS) != null ?
+				Integer.parseInt(params.get(SWITCH_THREADS)) : 1;
+		PageLoader loader = new PageLoader(store, threads);
+		// Titles from the page index, when written by download or by the index command.
+		PageIndex index = new PageIndex(destDir);
+		List<WikiPage> loadedPages = null;
+		try {
+			if (index.load())
+				loader.setIndex(index);
+			loadedPages = loader.load(pageNames);
+		} catch (IOException e) {
+			e.printStackTrace();
+			showError(e.getMessage());
+		}
 		pages = new WikiPages();
-		for (int f = 0; f < pageFiles.length; f++) {
-			try {
-				WikiPage page = WikiPage.loadForFormat(pageFiles[f]);
-				pages.put(page.title, page);
-				// Exclude?
-				if (excludes.contains(pageFiles[f].getName())) {
-					page.isExcluded = true;
-					LOGGER.debug("Page will be excluded as requested: {}", page.title);
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				showError("Error loading file: " + pageFiles[f].getAbsolutePath());
+		for (int p = 0; p < pageNames.size(); p++) {
+			WikiPage page = loadedPages.get(p);
+			pages.put(page.title, page);
+			// Exclude?
+			if (excludes.contains(pageNames.get(p))) {
+				page.isExcluded = true;
+				LOGGER.debug("Page will be excluded as requested: {}", page.title);
 			}
 		}
 		
@@ -246,6 +545,10 @@ public class Space2Latex {
 				LOGGER.info("  {}", page.getPageName());
 			}
 		}
+		LOGGER.info("Span styles cached: {}, cache hits: {}% of {} spans", SpanStyle.getCacheSize()
+				, String.format("%.1f", SpanStyle.getHitRatio()), SpanStyle.getRequests());
+		// Pages not parsed yet are read from the store until here.
+		closeStore(store, destDir);
 	}
 	
 	/**
@@ -280,7 +583,7 @@ public class Space2Latex {
 		// Add content to chapters using page files.
 		LOGGER.info("");
 		Formatter formatter = new Formatter(destDir, pages, latexDocument);
-		formatter.format(createMissingChapters);
+		formatter.format(createMissingChapters, threads);
 		
 		// Output file to latex directory using String Template.
 		STGroup documentStg = new STGroupFile("templates/default-latex-template.stg");
@@ -291,7 +594,15 @@ public class Space2Latex {
         	latexOutputFileName = latexDocument.title + "-" + latexDocument.date + ".tex";
         	latexOutputFileName = WikiPage.getPageName(latexOutputFileName);
         	File latexOutputFile = new File(latexDir, latexOutputFileName);
-			IOUtils.saveStringToFile(documentTemplate.render(), latexOutputFile);
+        	// Written while rendered, the text of the document is never held into a String. The formatted
+        	// elements of all the pages are still in memory until written: the preamble holds the verbatim
+        	// definitions of every page, so nothing can be written before the last page is formatted.
+        	Writer writer = new BufferedWriter(new FileWriter(latexOutputFile));
+        	try {
+        		documentTemplate.write(new AutoIndentWriter(writer));
+        	} finally {
+        		writer.close();
+        	}
 		} catch (IOException e) {
 			e.printStackTrace();
 			showError("Unable to save latex file " + latexOutputFileName);
@@ -311,11 +622,29 @@ public class Space2Latex {
 	
 	private void showUsage() {
 		System.out.println("usage: Stage2Latex [--command=download --url=<RESTful URL to query the documentation>]");
-		System.out.println("                                       [--dest-dir=<destination directory for download content>]]");
+		System.out.println("                                       [--dest-dir=<destination directory for download content>]");
+		System.out.println("                                       [--threads=<number of pages downloaded concurrently, default 1>]");
+		System.out.println("                                       [--prefetch=<listing requests kept in flight, default 1>]");
+		System.out.println("                                       [--http-pool=<connections kept alive for each host, default max(5, threads+prefetch)>]");
+		System.out.println("                                       [--http-timeout=<connect and read timeout in seconds, default 60>]");
+		System.out.println("                                       [--http-keep-alive=<true/false, default true>]");
+		System.out.println("                                       [--retry-attempts=<attempts for each request, default 5>]");
+		System.out.println("                                       [--retry-base-delay=<first wait before a retry in ms, doubled at each retry, default 1000>]");
+		System.out.println("                                       [--retry-max-delay=<longest wait before a retry in ms, default 60000>]");
+		System.out.println("                                       [--retry-max-elapsed=<time in ms after which a request is not retried, default 300000>]");
+		System.out.println("                                       [--max-concurrency=<upper bound of the adaptive limit of requests in flight, which starts at it, default threads+prefetch>]");
+		System.out.println("                                       [--incremental=<true/false, download only pages changed since the last download, default false>]");
+		System.out.println("                                       [--owner-cache=<true/false, keep the pages owning shared images between downloads, default false>]");
+		System.out.println("                                       [--dedup=<true/false, save identical images once under blobs/, default false>]");
+		System.out.println("                                       [--resume=<true/false, continue the last download from where it stopped, default false>]");
+		System.out.println("                                       [--pack=<true/false, save pages into a single pack file, default false, always true if already packed>]]");
 		System.out.println("                   [--command=format [--dest-dir=<directory with downloaded content>]");
 		System.out.println("                                     [--latex-dir=<directory to store generated latex files>]");
 		System.out.println("                                     [--exclude=<comma separated page ids to exclude>]");
+		System.out.println("                                     [--threads=<number of pages loaded and formatted concurrently, default 1>]");
 		System.out.println("                                     [--merge=<true/false, merge pages into 1 document, default true>]]");
+		System.out.println("                   [--command=pack [--dest-dir=<directory with downloaded content, page files are moved into a pack or the pack is compacted>]]");
+		System.out.println("                   [--command=index [--dest-dir=<directory with downloaded content, the page index used by format is written into it>]]");
 	}
 
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Node;
+
+/**
+ * Read a page content in Confluence storage format one top level node at a time.
+ * The content is read from a stream in chunks and the tags are only scanned to find where
+ * each top level node ends, then the node alone is parsed by Jsoup and dropped from the buffer.
+ * Memory is bounded by the biggest top level node: the content of the whole page is never
+ * kept, as a String or as a DOM. The nodes are the ones of a parse of the whole content, as
+ * long as the content is well formed as the storage format is.
+ * Line ends are read as "\n", as {@link org.mar9000.space2latex.utils.IOUtils#readFileAsString(java.io.File)} does.
+ */
+public class StorageFormatReader {
+
+	private static final String CONTENT_TAG = "content";
+	private static final int CHUNK_SIZE = 8192;
+	// Without end tag.
+	private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+			"area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+	// Content not parsed, up to the end tag.
+	private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList(
+			"iframe", "noembed", "noframes", "script", "style", "textarea", "title", "xmp"));
+
+	private Reader in = null;
+	private char[] chunk = new char[CHUNK_SIZE];
+	private boolean lastCR = false;
+	// From the start of the node being read.
+	private StringBuilder content = new StringBuilder();
+	private int position = 0;
+	// Known once the end of the stream, or of the content of a page file, is reached.
+	private int end = Integer.MAX_VALUE;
+	private String header = null;
+
+	/**
+	 * Read the content of a page file, see {@link WikiPage#save(PageStore)}. The reader is
+	 * closed at the end of the content or by {@link #close()}.
+	 */
+	public static StorageFormatReader forPage(Reader in) throws IOException {
+		StorageFormatReader reader = new StorageFormatReader(in);
+		try {
+			int start = reader.indexOf("<" + CONTENT_TAG + ">", 0);
+			if (start == -1)
+				throw new IllegalArgumentException("Page content not found.");
+			reader.header = reader.content.substring(0, start);
+			reader.content.delete(0, start + CONTENT_TAG.length() + 2);
+		} catch (RuntimeException e) {
+			reader.close();
+			throw e;
+		}
+		return reader;
+	}
+
+	public static StorageFormatReader forPage(String fileContent) {
+		try {
+			return forPage(new StringReader(fileContent));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read the nodes up to the end of in, or to the end tag of the content element of a page file.
+	 */
+	public StorageFormatReader(Reader in) {
+		this.in = in;
+	}
+
+	public StorageFormatReader(String storage) {
+		this(new StringReader(storage));
+	}
+
+	/**
+	 * What comes before the content of a page file: the page element and its images.
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	/**
+	 * Return the nodes parsed from the next top level node, null at the end.
+	 * A text node is returned alone, an element with its children.
+	 */
+	public List<Node> next() {
+		try {
+			List<Node> nodes = readNext();
+			if (nodes == null)
+				close();
+			return nodes;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading page content", e);
+		}
+	}
+
+	private List<Node> readNext() throws IOException {
+		if (!available(position))
+			return null;
+		int start = position;
+		int depth = 0;
+		do {
+			if (charAt(position) != '<' || !available(position + 1) || !isMarkup(charAt(position + 1))) {
+				// Text, up to the next tag, a '<' that does not start one is part of the text.
+				int next = indexOf("<", position + 1);
+				while (next != -1 && (!available(next + 1) || !isMarkup(charAt(next + 1))))
+					next = indexOf("<", next + 1);
+				position = next != -1 ? next : end;
+				if (depth == 0)
+					break;
+				continue;
+			}
+			char c = charAt(position + 1);
+			if (startsWith("<!--", position)) {
+				position = skipTo("-->", position + 4);
+			} else if (startsWith("<![CDATA[", position)) {
+				position = skipTo("]]>", position + 9);
+			} else if (c == '!' || c == '?') {
+				position = skipTo(">", position + 2);
+			} else if (c == '/') {
+				String name = tagName(position + 2);
+				if (depth == 0 && name.equals(CONTENT_TAG)) {
+					// End of the content of a page file.
+					end = position;
+					break;
+				}
+				position = skipTo(">", position + 2);
+				depth--;
+			} else {
+				String name = tagName(position + 1);
+				position = tagEnd(position + 1);
+				if (content.charAt(position - 2) == '/' || VOID_ELEMENTS.contains(name)) {
+					// Self closing.
+				} else if (RAW_TEXT_ELEMENTS.contains(name)) {
+					int close = indexOf("</", position);
+					while (close != -1 && !regionMatches(close + 2, name))
+						close = indexOf("</", close + 2);
+					position = close != -1 ? skipTo(">", close) : end;
+				} else {
+					depth++;
+				}
+			}
+		} while (depth > 0 && available(position));
+		if (position == start)
+			return null;
+		Document document = Jsoup.parseBodyFragment(content.substring(start, position));
+		// As format reads the pages, see WikiPage.loadForFormat().
+		document.outputSettings().prettyPrint(false);
+		// The node read is dropped.
+		content.delete(0, position);
+		if (end != Integer.MAX_VALUE)
+			end -= position;
+		position = 0;
+		return new ArrayList<Node>(document.body().childNodes());
+	}
+
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+		in = null;
+	}
+
+	/**
+	 * Read the next chunk, "\r\n" and "\r" become "\n". False at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		if (in == null)
+			return false;
+		int n = in.read(chunk);
+		if (n == -1) {
+			close();
+			return false;
+		}
+		for (int c = 0; c < n; c++) {
+			char ch = chunk[c];
+			if (ch == '\n' && lastCR) {
+				// Already added.
+			} else if (ch == '\r') {
+				content.append('\n');
+			} else {
+				content.append(ch);
+			}
+			lastCR = ch == '\r';
+		}
+		return true;
+	}
+
+	/**
+	 * True if there is a character at position, reading more of the stream if needed.
+	 */
+	private boolean available(int position) throws IOException {
+		while (position >= content.length() && position < end) {
+			if (!fill())
+				end = Math.min(end, content.length());
+		}
+		return position < end;
+	}
+
+	private char charAt(int position) throws IOException {
+		if (!available(position))
+			throw new IndexOutOfBoundsException("Position " + position);
+		return content.charAt(position);
+	}
+
+	/**
+	 * Position of text found from position, -1 if not found before the end.
+	 */
+	private int indexOf(String text, int position) throws IOException {
+		int from = position;
+		while (true) {
+			int found = content.indexOf(text, from);
+			if (found != -1)
+				return found + text.length() <= end ? found : -1;
+			// The text may span the chunk read next.
+			from = Math.max(position, content.length() - text.length() + 1);
+			if (!available(content.length()))
+				return -1;
+		}
+	}
+
+	private boolean startsWith(String text, int position) throws IOException {
+		return available(position + text.length() - 1)
+				&& content.substring(position, position + text.length()).equals(text);
+	}
+
+	/**
+	 * True if the name, case insensitive, is at position.
+	 */
+	private boolean regionMatches(int position, String name) throws IOException {
+		return available(position + name.length() - 1)
+				&& content.substring(position, position + name.length()).equalsIgnoreCase(name);
+	}
+
+	/**
+	 * Position after text found from position, the end if not found.
+	 */
+	private int skipTo(String text, int position) throws IOException {
+		int found = indexOf(text, position);
+		return found != -1 ? found + text.length() : end;
+	}
+
+	private String tagName(int position) throws IOException {
+		int p = position;
+		while (available(p) && !Character.isWhitespace(content.charAt(p)) && content.charAt(p) != '>' && content.charAt(p) != '/')
+			p++;
+		return content.substring(position, p).toLowerCase();
+	}
+
+	/**
+	 * Position after the '>' closing a start tag, skipping quoted attribute values.
+	 */
+	private int tagEnd(int position) throws IOException {
+		char quote = 0;
+		for (int p = position; available(p); p++) {
+			char c = content.charAt(p);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return p + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * True if a '<' followed by c starts a tag, a comment or a declaration.
+	 */
+	private static boolean isMarkup(char c) {
+		return Character.isLetter(c) || c == '/' || c == '!' || c == '?';
+	}
+
+}
@@ -18,9 +18,23 @@ package org.mar9000.space2latex;
 
 public class WikiImage {
 	
+	// Download status.
+	public static final int NOT_DOWNLOADED = 0;   // Unchanged or without download URL, the saved file is kept.
+	public static final int DOWNLOADED = 1;
+	public static final int NOT_MODIFIED = 2;   // 304, the saved file is kept.
+	public static final int MISSING = 3;   // Download failed, a placeholder has been saved.
+	public static final int KEPT = 4;   // Download failed, the file saved before is kept.
+	
 	public String pageId = null;
 	public String filename = null;
 	public String acImage = null;
-	public byte[] data = null;
+	// Path of the shared image file relative to the download directory, when saved by BlobStore.
+	public String blob = null;
+	public int status = NOT_DOWNLOADED;
+	// Attachment version, -1 if unknown.
+	public int version = -1;
+	// Validators of the saved image, sent with the conditional GET.
+	public String etag = null;
+	public String lastModified = null;
 
 }
@@ -17,9 +17,7 @@
 package org.mar9000.space2latex;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
@@ -30,6 +28,11 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
+import org.mar9000.space2latex.download.AttachmentIndex;
+import org.mar9000.space2latex.download.BlobStore;
+import org.mar9000.space2latex.download.DownloadStats;
+import org.mar9000.space2latex.download.OwnerPageCache;
+import org.mar9000.space2latex.download.PageManifest;
 import org.mar9000.space2latex.log.S2LLogUtils;
 import org.mar9000.space2latex.utils.ConfluenceRESTUtils;
 import org.mar9000.space2latex.utils.IOUtils;
@@ -58,9 +61,13 @@ public class WikiPage {
 	public String id = null;
 	public String storage = null;
 	public Map<String, WikiImage> images = new HashMap<String, WikiImage>();
-	public Element pageContent = null;
 	public boolean alreadyIncluded = false;
 	public boolean isExcluded = false;
+	// Pages loaded for format, from a store or from the content of their file, see getContentReader().
+	private PageStore store = null;
+	private String fileName = null;
+	private boolean imagesLoaded = false;
+	private String fileContent = null;
 	
 	public WikiPage(JSONObject json, String title, String id, String storage) {
 		this.json = json;
@@ -69,27 +76,38 @@ public class WikiPage {
 		this.storage = storage;
 	}
 	
-	public static WikiPage getWikiPage(JSONObject jsonPage) throws MalformedURLException {
+	/**
+	 * Download the page, its images are saved into destDir while downloaded.
+	 * With a manifest the images already saved are requested with a conditional GET and, for
+	 * the incremental download, the ones with the same attachment version are not requested at all.
+	 * The attachments listed are kept into indexes, shared by the pages of a download.
+	 */
+	public static WikiPage getWikiPage(JSONObject jsonPage, File destDir, PageManifest manifest,
+			AttachmentIndex.Cache indexes) throws IOException {
 		String title = jsonPage.getString(JSON_TITLE_ATTR);
 		String id = jsonPage.getString(JSON_ID_ATTR);
 		String storage = null;
 		JSONObject bodyObj = jsonPage.optJSONObject(JSON_BODY_ATTR);
-		if (bodyObj == null) {
+		if (bodyObj == null || bodyObj.optJSONObject(JSON_STORAGE_ATTR) == null) {
+			// Body not expanded by the server on the listing, one more request.
+			DownloadStats.bodyRequested();
 			String url = jsonPage.getJSONObject(JSON_LINKS_ATTR).getString(JSON_SELF_ATTR);
 			JSONObject pageExpanded = ConfluenceRESTUtils.getURLResponse(url + "?expand="
 					+ JSON_BODY_ATTR + "." + JSON_STORAGE_ATTR);
 			storage = pageExpanded.getJSONObject(JSON_BODY_ATTR).getJSONObject(JSON_STORAGE_ATTR)
 					.getString(JSON_VALUE_ATTR);
 		} else {
+			DownloadStats.bodyRequestAvoided();
 			storage = bodyObj.getJSONObject(JSON_STORAGE_ATTR).getString(JSON_VALUE_ATTR);
 		}
 		WikiPage page = new WikiPage(jsonPage, title, id, storage);
 		LOGGER.info("  Page downloaded: {}", title);
-		downloadWikiPageImages(page);
+		downloadWikiPageImages(page, destDir, manifest, indexes);
 		return page;
 	}
 	
-	public static void downloadWikiPageImages(WikiPage page) throws MalformedURLException {
+	public static void downloadWikiPageImages(WikiPage page, File destDir, PageManifest manifest,
+			AttachmentIndex.Cache indexes) throws IOException {
 		String pageUrl = page.json.getJSONObject(JSON_LINKS_ATTR).getString(JSON_SELF_ATTR);
 		Document document = Jsoup.parseBodyFragment(page.storage);
 		document.outputSettings().prettyPrint(false);
@@ -111,11 +129,8 @@ public class WikiPage {
 				Elements riPages = riAttachment.select("ri|page");
 				// Thumbnails are not found with "child/attachment" URL schema.
 				boolean isThumbnail = "true".equals(element.attr("ac:thumbnail"));
-				String queryURL = null;
-				if (!isThumbnail) {
-					queryURL = pageUrl + "/child/attachment?filename=" + URLEncoder.encode(imageKey);
-				} else {
-					// For thumbnail we construct directly the downloadURL without queryURL.
+				if (isThumbnail) {
+					// For thumbnail we construct directly the downloadURL without the attachment index.
 					/* Some pages have thumbnail images for better online reading.
 					 * Here we download always the attached file to embed readable imagesinto the pdf.
 					downloadURL = pageUrl.substring(0, pageUrl.indexOf("/rest/api"))
@@ -134,19 +149,29 @@ public class WikiPage {
 							+ "?title=" + contentTitle;
 					if (space.length() > 0)   // I've found a case where space is "".
 						newQueryURL += "&spaceKey=" + space;
-					JSONObject jsonNewQuery = ConfluenceRESTUtils.getURLResponse(newQueryURL);
-					if (jsonNewQuery.getInt(JSON_SIZE_ATTR) == 0)
-						throw new RuntimeException("Page \"" + contentTitle + "\" in space " + space + " not found.");
-					JSONObject jsonNewPage = (JSONObject)jsonNewQuery.getJSONArray(JSON_RESULTS_ATTR).get(0);
-					image.pageId = jsonNewPage.getString(JSON_ID_ATTR);
-					// Overwrite queryURL.
-					String newPageUrl = jsonNewPage.getJSONObject(JSON_LINKS_ATTR).getString(JSON_SELF_ATTR);
-					queryURL = newPageUrl + "/child/attachment?filename=" + URLEncoder.encode(imageKey);
-					// queryURL has been updated, update downloadURL.
-					downloadURL = getAttachmentDownloadURL(queryURL);
+					// Looked up once and shared with the other pages referencing it.
+					OwnerPageCache.OwnerPage owner = OwnerPageCache.getOwnerPage(space, contentTitle, newQueryURL);
+					AttachmentIndex index = null;
+					try {
+						index = indexes.getIndex(owner.id, owner.self, null);
+					} catch (RuntimeException e) {
+						if (!owner.fromDisk)
+							throw e;
+						// Saved by a previous download, the page may have been moved or deleted since.
+						OwnerPageCache.invalidate(space, contentTitle, owner);
+						owner = OwnerPageCache.getOwnerPage(space, contentTitle, newQueryURL);
+						index = indexes.getIndex(owner.id, owner.self, null);
+					}
+					image.pageId = owner.id;
+					// Use the attachments of the other page, shared with the other pages referencing it.
+					String newPageUrl = owner.self;
+					downloadURL = getAttachmentDownloadURL(index, newPageUrl, imageKey);
+					image.version = index.getVersion(imageKey);
+				} else if (!isThumbnail) {
+					AttachmentIndex index = indexes.getIndex(page.id, pageUrl, page.json);
+					downloadURL = getAttachmentDownloadURL(index, pageUrl, imageKey);
+					image.version = index.getVersion(imageKey);
 				}
-				if (!isThumbnail)
-					downloadURL = getAttachmentDownloadURL(queryURL);
 			} else {
 				refs = element.select("ri|url");
 				if (refs.size() > 0) {   // URL.
@@ -161,9 +186,40 @@ public class WikiPage {
 			// Download the image data.
 			image.filename = imageKey.replace(' ', '_');   // Space are not handled by LaTeX.
 			image.filename = imageKey.replaceAll("%", ".p.");   // '%' are not handled by LaTeX.
-			if (downloadURL != null) {
+			// Images can reference images from other page/space so I have to check this for every image.
+			File imagesDir = new File(destDir, image.pageId);
+			if (!BlobStore.isEnabled() && !imagesDir.exists())
+				imagesDir.mkdir();
+			if (manifest != null)
+				manifest.fillValidators(image, imageKey);
+			if (downloadURL != null && manifest != null
+					&& manifest.isAttachmentUnchanged(image.pageId, imageKey, image.version)) {
+				// Already saved, the file is kept.
+				LOGGER.info("    image unchanged {}/{}", new Object[]{image.pageId, image.filename});
+				DownloadStats.imageUnchanged();
+			} else if (downloadURL != null && BlobStore.isEnabled()) {
+				LOGGER.info("    about to download image {}/{}", new Object[]{image.pageId, image.filename});
+				BlobStore.download(downloadURL, image);
+				if (image.status == WikiImage.NOT_MODIFIED) {
+					LOGGER.info("    image not modified {}/{}", new Object[]{image.pageId, image.filename});
+					DownloadStats.imageNotModified();
+				} else if (image.status == WikiImage.KEPT) {
+					LOGGER.error("    image download failed, saved image kept {}/{}", new Object[]{image.pageId, image.filename});
+				} else {
+					System.out.println("    image saved \"" + image.filename + "\" to " + image.blob);
+				}
+			} else if (downloadURL != null) {
+				File imageFile = new File(imagesDir, image.filename);
 				LOGGER.info("    about to download image {}/{}", new Object[]{image.pageId, image.filename});
-				image.data = IOUtils.getImageFromURL(downloadURL);
+				IOUtils.saveImageFromURL(downloadURL, imageFile, image);
+				if (image.status == WikiImage.NOT_MODIFIED) {
+					LOGGER.info("    image not modified {}/{}", new Object[]{image.pageId, image.filename});
+					DownloadStats.imageNotModified();
+				} else if (image.status == WikiImage.KEPT) {
+					LOGGER.error("    image download failed, saved image kept {}/{}", new Object[]{image.pageId, image.filename});
+				} else {
+					System.out.println("    image saved \"" + image.filename + "\" to " + imageFile.getAbsolutePath());
+				}
 			} else {
 				LOGGER.info("    NULL download URL for page/image: {}/{}"
 						, new Object[]{image.pageId, image.filename});
@@ -172,76 +228,172 @@ public class WikiPage {
 		}
 	}
 
-	private static String getAttachmentDownloadURL(String queryURL) throws MalformedURLException {
-		JSONObject response = ConfluenceRESTUtils.getURLResponse(queryURL);
-		if (response.getInt(JSON_SIZE_ATTR) == 0) {
-			LOGGER.error("Image at URL non found: {}", queryURL);
-			LOGGER.error("Response: {}", response.toString());
-			return null;
-		}
-		JSONObject firstResult = (JSONObject)response.getJSONArray(JSON_RESULTS_ATTR).get(0);
-		String self = firstResult.getJSONObject(JSON_LINKS_ATTR).getString(JSON_SELF_ATTR);
-		String protocol = self.substring(0, self.indexOf("/rest/api"));
-		return protocol + firstResult.getJSONObject(JSON_LINKS_ATTR).getString("download");
+	private static String getAttachmentDownloadURL(AttachmentIndex index, String pageUrl, String filename) {
+		String downloadURL = index.getDownloadURL(filename);
+		if (downloadURL == null)
+			LOGGER.error("Image {} non found in the attachments of page {}", filename, pageUrl);
+		return downloadURL;
 	}
 	
 	public static final String PAGE_PREFIX = "page-";
 	public static final String PAGE_EXTENSION = ".html";
 	public void save(File destDir) throws IOException {
-		File destFile = new File(destDir, PAGE_PREFIX + getPageName() + PAGE_EXTENSION);
-		System.out.println("  About to save page \"" + title + "\" to " + destFile.getAbsolutePath());
-		FileWriter writer = new FileWriter(destFile);
-		writer.write("<page title=\"" + this.title + "\" id=\"" +this.id + "\">\n");
+		save(new PageDirectory(destDir));
+	}
+	
+	public void save(PageStore store) throws IOException {
+		String fileName = getFileName();
+		System.out.println("  About to save page \"" + title + "\" to " + store.getLocation(fileName));
+		StringBuilder content = new StringBuilder();
+		content.append("<page title=\"" + this.title + "\" id=\"" +this.id + "\">\n");
 		// Save images references to be used in format.
-		writer.write("<wikiimages>\n");
+		content.append("<wikiimages>\n");
 		for (String imageKey : this.images.keySet()) {
 			WikiImage image = this.images.get(imageKey);
 			// Write the image element.
-			writer.write("<wikiimage pageid=\"" + image.pageId+"\" filename=\""+image.filename + "\">\n");
-			writer.write(image.acImage);
-			writer.write("\n");
-			writer.write("</wikiimage>\n");
-			// Write image to disk.
-			// Images can reference images from other page/space so I have to check this for every image.
-			File imagesDir = new File(destDir, image.pageId);
-			if (!imagesDir.exists())
-				imagesDir.mkdir();
-			//
-			if (image.data == null)
-				continue;
-			File imageFile = new File(imagesDir, image.filename);
-			System.out.println("    about to save image \"" + image.filename + "\" to " + imageFile.getAbsolutePath());
-			IOUtils.writeDataToFile(image.data, imageFile);
+			content.append("<wikiimage pageid=\"" + image.pageId+"\" filename=\""+image.filename + "\""
+					+ (image.blob != null ? " blob=\"" + image.blob + "\"" : "") + ">\n");
+			content.append(image.acImage);
+			content.append("\n");
+			content.append("</wikiimage>\n");
+			// Image files have been saved while downloaded.
 		}
-		writer.write("</wikiimages>\n");
+		content.append("</wikiimages>\n");
 		// Content.
-		writer.write("<content>");
-		writer.write(this.storage);
-		writer.write("</content>\n</page>\n");
-		writer.close();
+		content.append("<content>");
+		content.append(this.storage);
+		content.append("</content>\n</page>\n");
+		store.write(fileName, id, title, content.toString());
+	}
+	
+	public String getFileName() {
+		return PAGE_PREFIX + getPageName() + PAGE_EXTENSION;
 	}
 	
 	public static WikiPage loadForFormat(File file) throws IOException {
-		String fileContent = IOUtils.readFileAsString(file);
-		Document doc = Jsoup.parseBodyFragment(fileContent);
+		return loadForFormat(IOUtils.readWholeFile(file));
+	}
+	
+	/**
+	 * A page loaded from the content of its file, images are parsed now, the content
+	 * when formatted, see getContentReader().
+	 */
+	public static WikiPage loadForFormat(String fileContent) {
+		String[] header = readHeader(fileContent);
+		if (header == null)
+			throw new IllegalArgumentException("Page header not found.");
+		WikiPage page = new WikiPage(null, header[0], header[1], null);
+		page.fileContent = fileContent;
+		page.images = parseImages(fileContent);
+		return page;
+	}
+	
+	/**
+	 * Load only the title and the id of a saved page, its images and content are read
+	 * from the store when needed.
+	 */
+	public static WikiPage loadHeaderForFormat(PageStore store, String fileName) throws IOException {
+		String firstLine = store.readFirstLine(fileName);
+		String[] header = firstLine != null ? readHeader(firstLine) : null;
+		if (header == null)
+			throw new IOException("Page header not found: " + store.getLocation(fileName));
+		return loadForFormat(store, fileName, header[0], header[1]);
+	}
+	
+	/**
+	 * A page with title and id already known, for instance from {@link PageIndex}, read
+	 * as the ones returned by loadHeaderForFormat().
+	 */
+	public static WikiPage loadForFormat(PageStore store, String fileName, String title, String id) {
+		WikiPage page = new WikiPage(null, title, id, null);
+		page.store = store;
+		page.fileName = fileName;
+		return page;
+	}
+	
+	/**
+	 * A page with its images already known from {@link PageIndex}, the page file is read only
+	 * when formatted.
+	 */
+	public static WikiPage loadForFormat(PageStore store, String fileName, PageIndex.Entry entry) {
+		WikiPage page = loadForFormat(store, fileName, entry.title, entry.id);
+		page.images = entry.getImages();
+		page.imagesLoaded = true;
+		return page;
+	}
+	
+	/**
+	 * A reader of the content of a page loaded for format. Pages of a store are read again
+	 * from the store at each call, neither the content nor its DOM is kept, see {@link StorageFormatReader}.
+	 * The images, if not known yet, are taken from the same read.
+	 */
+	public StorageFormatReader getContentReader() {
+		if (store == null)
+			return StorageFormatReader.forPage(fileContent);
+		try {
+			StorageFormatReader reader = StorageFormatReader.forPage(store.openReader(fileName));
+			synchronized (this) {
+				if (!imagesLoaded) {
+					images = parseImages(reader.getHeader());
+					imagesLoaded = true;
+				}
+			}
+			return reader;
+		} catch (Exception e) {
+			throw new RuntimeException("Error loading file: " + store.getLocation(fileName), e);
+		}
+	}
+	
+	/**
+	 * The images of a page loaded for format, read from the store the first time if not
+	 * known from {@link PageIndex}, only the page file up to the content is read.
+	 */
+	public synchronized Map<String, WikiImage> getImages() {
+		if (store != null && !imagesLoaded) {
+			try {
+				StorageFormatReader reader = StorageFormatReader.forPage(store.openReader(fileName));
+				reader.close();
+				images = parseImages(reader.getHeader());
+			} catch (Exception e) {
+				throw new RuntimeException("Error loading file: " + store.getLocation(fileName), e);
+			}
+			imagesLoaded = true;
+		}
+		return images;
+	}
+	
+	/**
+	 * The images listed before the content of a page file, by ac:image element.
+	 */
+	static Map<String, WikiImage> parseImages(String fileContent) {
+		// The content is not parsed.
+		int contentStart = fileContent.indexOf("<content>");
+		Document doc = Jsoup.parseBodyFragment(contentStart != -1 ? fileContent.substring(0, contentStart) : fileContent);
 		// Maintain input string.
 		doc.outputSettings().prettyPrint(false);
-		Element body = doc.body();
-		Element pageElement = body.select("page").first();
-		String title = pageElement.attr("title");
-		String id = pageElement.attr("id");
-		Element pageContent = pageElement.select("content").first();
-		WikiPage page = new WikiPage(null, title, id, pageContent.html());
-		page.pageContent = pageContent;
-		// Images.
-		Elements images = body.select("wikiimages").first().select("wikiimage");
-		for (Element imageElement : images) {
+		Map<String, WikiImage> images = new HashMap<String, WikiImage>();
+		Elements imageElements = doc.body().select("wikiimages").first().select("wikiimage");
+		for (Element imageElement : imageElements) {
 			WikiImage image = new WikiImage();
 			String acKey = imageElement.select("ac|image").first().outerHtml();
 			image.filename = imageElement.attr("pageid") + "/" + imageElement.attr("filename");
-			page.images.put(acKey, image);
+			if (imageElement.hasAttr("blob"))
+				image.filename = imageElement.attr("blob");   // Shared file, see BlobStore.
+			images.put(acKey, image);
 		}
-		return page;
+		return images;
+	}
+	
+	/**
+	 * Return the title and the id of a saved page reading only its first line.
+	 */
+	public static String[] readHeader(String fileContent) {
+		int end = fileContent.indexOf('\n');
+		Element pageElement = Jsoup.parseBodyFragment(end != -1 ? fileContent.substring(0, end) : fileContent)
+				.body().select("page").first();
+		if (pageElement == null)
+			return null;
+		return new String[]{pageElement.attr("title"), pageElement.attr("id")};
 	}
 	
 	// ---------- Utilities.   ----------
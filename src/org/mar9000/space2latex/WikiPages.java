@@ -24,24 +24,25 @@ import java.util.Set;
 /**
  * Implements few methods of a non-case sensitive String Map.
  * This because page titles in Confluence are not case sensitive.
+ * Pages can be put and got by more threads.
  */
 public class WikiPages {
 	
 	private Map<String, WikiPage> pages = new HashMap<String, WikiPage>();
 	
-	public void put(String key, WikiPage page) {
+	public synchronized void put(String key, WikiPage page) {
 		pages.put(key.toLowerCase(), page);
 	}
 	
-	public Set<String> keySet() {
+	public synchronized Set<String> keySet() {
 		return pages.keySet();
 	}
 	
-	public WikiPage get(String key) {
+	public synchronized WikiPage get(String key) {
 		return pages.get(key.toLowerCase());
 	}
 	
-	public Collection<WikiPage> values() {
+	public synchronized Collection<WikiPage> values() {
 		return pages.values();
 	}
 
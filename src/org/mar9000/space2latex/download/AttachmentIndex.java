@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.net.MalformedURLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.utils.ConfluenceRESTUtils;
+
+/**
+ * The attachments of a page indexed by filename.
+ * The index is built from the attachments expanded on the listing when they are complete,
+ * otherwise with the paginated "child/attachment" query. Indexes are kept by a {@link Cache} of
+ * the download, shared by its workers, so images of a page referenced by other pages (ri:page)
+ * are listed only once by a download and nothing is kept once it is over.
+ * Attachment versions are kept when expanded, they are used by the incremental download.
+ */
+public class AttachmentIndex {
+
+	public static final String JSON_CHILDREN_ATTR = "children";
+	public static final String JSON_ATTACHMENT_ATTR = "attachment";
+	public static final String JSON_DOWNLOAD_ATTR = "download";
+	public static final String JSON_NEXT_ATTR = "next";
+
+	// Download URL by filename.
+	private Map<String, String> downloadURLs = new HashMap<String, String>();
+	// Attachment version by filename.
+	private Map<String, Integer> versions = new HashMap<String, Integer>();
+
+	/**
+	 * The indexes of the pages of a download by page id, each page is listed once even
+	 * when requested by more workers at the same time.
+	 */
+	public static class Cache {
+
+		private ConcurrentHashMap<String, FutureTask<AttachmentIndex>> indexes =
+				new ConcurrentHashMap<String, FutureTask<AttachmentIndex>>();
+
+		/**
+		 * Return the index of the page, jsonPage can be null or without the expanded attachments.
+		 */
+		public AttachmentIndex getIndex(final String pageId, final String pageUrl, final JSONObject jsonPage)
+				throws MalformedURLException {
+			FutureTask<AttachmentIndex> task = new FutureTask<AttachmentIndex>(new Callable<AttachmentIndex>() {
+				@Override
+				public AttachmentIndex call() throws Exception {
+					AttachmentIndex index = new AttachmentIndex();
+					if (!index.addExpanded(jsonPage))
+						index.addListed(pageUrl);
+					return index;
+				}
+			});
+			FutureTask<AttachmentIndex> existing = indexes.putIfAbsent(pageId, task);
+			if (existing != null) {
+				task = existing;
+			} else {
+				task.run();
+			}
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while listing attachments of page " + pageId);
+			} catch (ExecutionException e) {
+				// Let a later request try again.
+				indexes.remove(pageId, task);
+				if (e.getCause() instanceof MalformedURLException)
+					throw (MalformedURLException)e.getCause();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+	}
+
+	/**
+	 * Use the attachments expanded into the page JSON, return false if they are missing or incomplete.
+	 */
+	private boolean addExpanded(JSONObject jsonPage) {
+		if (jsonPage == null)
+			return false;
+		JSONObject children = jsonPage.optJSONObject(JSON_CHILDREN_ATTR);
+		if (children == null)
+			return false;
+		JSONObject expanded = children.optJSONObject(JSON_ATTACHMENT_ATTR);
+		if (expanded == null || expanded.optJSONArray(WikiPage.JSON_RESULTS_ATTR) == null)
+			return false;
+		JSONObject links = expanded.optJSONObject(WikiPage.JSON_LINKS_ATTR);
+		if (links != null && links.has(JSON_NEXT_ATTR))
+			return false;
+		JSONArray results = expanded.getJSONArray(WikiPage.JSON_RESULTS_ATTR);
+		if (expanded.has(WikiPage.JSON_LIMIT_ATTR) && results.length() >= expanded.getInt(WikiPage.JSON_LIMIT_ATTR))
+			return false;
+		add(results);
+		return true;
+	}
+
+	private void addListed(String pageUrl) throws MalformedURLException {
+		String queryURL = pageUrl + "/child/attachment?expand=" + PageManifest.JSON_VERSION_ATTR;
+		int start = 0;
+		while (true) {
+			JSONObject response = ConfluenceRESTUtils.getURLResponse(queryURL, start, ConfluenceRESTUtils.LIMIT_FOR_REQUEST);
+			JSONArray results = response.getJSONArray(WikiPage.JSON_RESULTS_ATTR);
+			add(results);
+			if (results.length() < ConfluenceRESTUtils.LIMIT_FOR_REQUEST)
+				return;
+			start += results.length();
+		}
+	}
+
+	private void add(JSONArray results) {
+		for (int a = 0; a < results.length(); a++) {
+			JSONObject attachment = results.getJSONObject(a);
+			JSONObject links = attachment.getJSONObject(WikiPage.JSON_LINKS_ATTR);
+			String self = links.getString(WikiPage.JSON_SELF_ATTR);
+			String protocol = self.substring(0, self.indexOf("/rest/api"));
+			String title = attachment.getString(WikiPage.JSON_TITLE_ATTR);
+			downloadURLs.put(title, protocol + links.getString(JSON_DOWNLOAD_ATTR));
+			versions.put(title, PageManifest.getVersion(attachment));
+		}
+	}
+
+	/**
+	 * Return the download URL of the attachment, null if the page does not have it.
+	 */
+	public String getDownloadURL(String filename) {
+		return downloadURLs.get(filename);
+	}
+
+	/**
+	 * Return the version of the attachment, -1 if unknown.
+	 */
+	public int getVersion(String filename) {
+		Integer version = versions.get(filename);
+		return version == null ? -1 : version;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mar9000.space2latex.WikiImage;
+import org.mar9000.space2latex.utils.IOUtils;
+
+/**
+ * Images stored once by content, under "blobs/" with the SHA-256 of their data as name, instead
+ * of once for every page directory. The page files point at the blob of each image.
+ * An image referenced many times with the same URL is downloaded once per download, images
+ * with the same content but different URLs are downloaded and then stored once.
+ * Disabled until configured.
+ */
+public class BlobStore {
+
+	public static final String BLOBS_DIR = "blobs";
+
+	private static File destDir = null;
+	// By download URL.
+	private static ConcurrentHashMap<String, FutureTask<WikiImage>> downloads =
+			new ConcurrentHashMap<String, FutureTask<WikiImage>>();
+	private static AtomicInteger blobsStored = new AtomicInteger();
+	private static AtomicInteger blobsExisting = new AtomicInteger();
+	private static AtomicInteger downloadsShared = new AtomicInteger();
+
+	public static void configure(File downloadDir) {
+		destDir = downloadDir;
+	}
+
+	public static boolean isEnabled() {
+		return destDir != null;
+	}
+
+	/**
+	 * Download the image into its blob, or reuse the download of the same URL done by another page.
+	 * The image etag and lastModified are sent with the request, on 304 the image blob is kept.
+	 */
+	public static void download(final String urlString, final WikiImage image) throws IOException {
+		final WikiImage validators = new WikiImage();
+		validators.blob = image.blob;
+		validators.etag = image.etag;
+		validators.lastModified = image.lastModified;
+		validators.filename = image.filename;
+		FutureTask<WikiImage> task = new FutureTask<WikiImage>(new Callable<WikiImage>() {
+			@Override
+			public WikiImage call() throws Exception {
+				save(urlString, validators);
+				return validators;
+			}
+		});
+		FutureTask<WikiImage> existing = downloads.putIfAbsent(urlString, task);
+		if (existing != null) {
+			downloadsShared.incrementAndGet();
+			task = existing;
+		} else {
+			task.run();
+		}
+		WikiImage downloaded = null;
+		try {
+			downloaded = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while downloading " + urlString);
+		} catch (ExecutionException e) {
+			downloads.remove(urlString, task);
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		// On 304, or when the revalidation failed, the blob already saved is kept, the validators
+		// are only filled when it is on disk.
+		image.blob = downloaded.blob;
+		image.status = downloaded.status;
+		image.etag = downloaded.etag;
+		image.lastModified = downloaded.lastModified;
+	}
+
+	private static void save(String urlString, WikiImage image) throws IOException {
+		File blobsDir = new File(destDir, BLOBS_DIR);
+		if (!blobsDir.exists())
+			blobsDir.mkdirs();
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		File tmpFile = File.createTempFile(".download-", ".tmp", blobsDir);
+		try {
+			IOUtils.saveImageFromURL(urlString, tmpFile, image, digest);
+			if (image.status == WikiImage.NOT_MODIFIED || image.status == WikiImage.KEPT)
+				return;
+			String hash = IOUtils.toHex(digest.digest());
+			String extension = "";
+			if (image.filename.lastIndexOf('.') != -1)
+				extension = image.filename.substring(image.filename.lastIndexOf('.'));
+			String blob = BLOBS_DIR + "/" + hash.substring(0, 2) + "/" + hash + extension;
+			File blobFile = new File(destDir, blob);
+			synchronized (BlobStore.class) {
+				if (blobFile.exists()) {
+					blobsExisting.incrementAndGet();
+				} else {
+					blobFile.getParentFile().mkdirs();
+					try {
+						Files.move(tmpFile.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tmpFile.toPath(), blobFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+					blobsStored.incrementAndGet();
+				}
+			}
+			image.blob = blob;
+		} finally {
+			// Left when not modified or when the blob already exists.
+			tmpFile.delete();
+		}
+	}
+
+	public static int getStoredCount() {
+		return blobsStored.get();
+	}
+
+	public static int getExistingCount() {
+		return blobsExisting.get();
+	}
+
+	public static int getSharedDownloadCount() {
+		return downloadsShared.get();
+	}
+
+}
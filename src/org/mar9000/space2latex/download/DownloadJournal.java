@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.mar9000.space2latex.utils.IOUtils;
+import org.slf4j.Logger;
+
+/**
+ * Append only log of a download in progress, kept next to the page files until the download
+ * completes. It records the pages saved, with the manifest lines of the page and of its attachments,
+ * and the listing offset before which all the pages are done. A download stopped by an error
+ * or killed can be resumed from that offset, the pages already saved after it are skipped
+ * and the manifest is brought up to date with the lines recorded.
+ * Lines are flushed when written and forced to disk at each offset checkpoint, a line
+ * not terminated by a crash is ignored.
+ */
+public class DownloadJournal {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(DownloadJournal.class);
+
+	public static final String JOURNAL_FILE = "space2latex-journal.txt";
+	private static final String DOWNLOAD_RECORD = "download";
+	private static final String DONE_RECORD = "done";
+	private static final String OFFSET_RECORD = "offset";
+
+	private File file = null;
+	private String url = null;
+	// Pages requested, from the start of the download.
+	private int start = 0;
+	private int limit = 0;
+	private int offset = 0;
+	private int checkpoint = 1;
+	private Set<String> donePages = new HashSet<String>();
+	private FileOutputStream out = null;
+	private Writer writer = null;
+	// Pages of the listing by position from the offset, done or not.
+	private int submitted = 0;
+	private BitSet done = new BitSet();
+	private int doneBefore = 0;
+
+	/**
+	 * A journal for the download of limit pages of url from start, forced to disk every checkpoint pages.
+	 */
+	public DownloadJournal(File destDir, String url, int start, int limit, int checkpoint) {
+		this.file = new File(destDir, JOURNAL_FILE);
+		this.url = url;
+		this.start = start;
+		this.limit = limit;
+		this.offset = start;
+		this.checkpoint = Math.max(1, checkpoint);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read the journal left by the download of the same URL, replaying the recorded lines into
+	 * the manifest. Start and limit are the ones of the download resumed.
+	 * Return false if there is no journal to resume.
+	 */
+	public synchronized boolean load(PageManifest manifest) throws IOException {
+		if (!file.exists())
+			return false;
+		List<String> lines = IOUtils.readCompleteLines(file);
+		String[] header = lines.size() > 0 ? lines.get(0).split("\t", -1) : new String[0];
+		if (header.length != 4 || !header[0].equals(DOWNLOAD_RECORD) || !header[1].equals(url))
+			throw new IOException("The journal " + file.getAbsolutePath() + " is not of a download of " + url);
+		start = Integer.parseInt(header[2]);
+		limit = Integer.parseInt(header[3]);
+		offset = start;
+		int records = 0;
+		for (int l = 1; l < lines.size(); l++) {
+			String[] fields = lines.get(l).split("\t", -1);
+			if (fields[0].equals(OFFSET_RECORD) && fields.length == 2) {
+				offset = Integer.parseInt(fields[1]);
+			} else if (fields[0].equals(DONE_RECORD) && fields.length == 2) {
+				donePages.add(fields[1]);
+			} else {
+				manifest.readRecord(lines.get(l));
+				records++;
+			}
+		}
+		LOGGER.info("Journal loaded: resume from offset {}, {} pages done, {} manifest lines"
+				, new Object[]{offset, donePages.size(), records});
+		return true;
+	}
+
+	/**
+	 * Listing offset from which the download continues.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Pages still to download from the offset.
+	 */
+	public int getRemaining() {
+		return start + limit - offset;
+	}
+
+	/**
+	 * Start writing the journal, from the loaded one if resumed or from scratch.
+	 */
+	public synchronized void open(boolean resumed) throws IOException {
+		out = new FileOutputStream(file, resumed);
+		writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		if (!resumed)
+			writer.write(DOWNLOAD_RECORD + "\t" + url + "\t" + start + "\t" + limit + "\n");
+		writer.write(OFFSET_RECORD + "\t" + offset + "\n");
+		sync();
+	}
+
+	/**
+	 * True if the page has been saved before the download was stopped.
+	 */
+	public synchronized boolean isDone(String pageId) {
+		return donePages.contains(pageId);
+	}
+
+	/**
+	 * Return the position of the next page of the listing, pages are submitted in listing order.
+	 */
+	public synchronized int nextPage() {
+		return submitted++;
+	}
+
+	/**
+	 * Record a page saved, with its manifest lines.
+	 */
+	public synchronized void pageSaved(int position, WikiPage page, PageManifest manifest) throws IOException {
+		for (String record : manifest.getRecords(page)) {
+			writer.write(record + "\n");
+		}
+		writer.write(DONE_RECORD + "\t" + page.id + "\n");
+		writer.flush();
+		pageDone(position);
+	}
+
+	/**
+	 * A page of the listing saved or skipped, the offset can move past it.
+	 */
+	public synchronized void pageDone(int position) throws IOException {
+		done.set(position);
+		int before = done.nextClearBit(doneBefore);
+		if (before / checkpoint > doneBefore / checkpoint) {
+			writer.write(OFFSET_RECORD + "\t" + (offset + before) + "\n");
+			sync();
+		}
+		doneBefore = before;
+	}
+
+	private void sync() throws IOException {
+		writer.flush();
+		out.getFD().sync();
+	}
+
+	/**
+	 * True if all the pages submitted are done and there are no more pages to submit,
+	 * because the listing ended or the limit has been reached.
+	 */
+	public synchronized boolean isFinished(boolean listingComplete) {
+		return doneBefore == submitted && (listingComplete || offset + submitted >= start + limit);
+	}
+
+	/**
+	 * Force to disk what has been written, the journal is kept for a later resume.
+	 */
+	public synchronized void close() throws IOException {
+		if (writer == null)
+			return;
+		writer.write(OFFSET_RECORD + "\t" + (offset + doneBefore) + "\n");
+		sync();
+		writer.close();
+		writer = null;
+	}
+
+	/**
+	 * The download completed, the journal is no more needed.
+	 */
+	public synchronized void delete() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		if (file.exists() && !file.delete())
+			throw new IOException("Unable to delete " + file.getAbsolutePath());
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mar9000.space2latex.utils.ConcurrencyLimiter;
+import org.mar9000.space2latex.utils.HttpClient;
+import org.mar9000.space2latex.utils.RetryPolicy;
+import org.slf4j.Logger;
+
+/**
+ * Counters collected during a download, shared by all the download workers.
+ * They are logged at the end of the download as a run summary.
+ */
+public class DownloadStats {
+
+	private static long startTime = System.currentTimeMillis();
+	private static AtomicInteger pagesSaved = new AtomicInteger();
+	private static AtomicInteger bodyRequestsAvoided = new AtomicInteger();
+	private static AtomicInteger bodyRequests = new AtomicInteger();
+	private static AtomicInteger pagesUnchanged = new AtomicInteger();
+	private static AtomicInteger imagesUnchanged = new AtomicInteger();
+	private static AtomicInteger imagesNotModified = new AtomicInteger();
+	private static AtomicInteger pagesResumed = new AtomicInteger();
+	private static List<String> failedPages = new ArrayList<String>();
+
+	public static void start() {
+		startTime = System.currentTimeMillis();
+	}
+
+	public static void pageSaved() {
+		pagesSaved.incrementAndGet();
+	}
+
+	/**
+	 * Incremental download, the page version did not change and the page has not been downloaded.
+	 */
+	public static void pageUnchanged() {
+		pagesUnchanged.incrementAndGet();
+	}
+
+	/**
+	 * Resumed download, the page has been saved before the download was stopped.
+	 */
+	public static void pageResumed() {
+		pagesResumed.incrementAndGet();
+	}
+
+	/**
+	 * Incremental download, the image already saved has the same attachment version.
+	 */
+	public static void imageUnchanged() {
+		imagesUnchanged.incrementAndGet();
+	}
+
+	/**
+	 * The server answered 304 to the conditional GET of an image already saved.
+	 */
+	public static void imageNotModified() {
+		imagesNotModified.incrementAndGet();
+	}
+
+	/**
+	 * The page body was expanded on the listing, no further request needed.
+	 */
+	public static void bodyRequestAvoided() {
+		bodyRequestsAvoided.incrementAndGet();
+	}
+
+	/**
+	 * The page body was missing from the listing and has been requested page by page.
+	 */
+	public static void bodyRequested() {
+		bodyRequests.incrementAndGet();
+	}
+
+	public static synchronized void pageFailed(String page) {
+		failedPages.add(page);
+	}
+
+	public static synchronized int getFailedPagesCount() {
+		return failedPages.size();
+	}
+
+	public static synchronized void logSummary(Logger logger) {
+		logger.info("");
+		logger.info("********** Download summary. **********");
+		logger.info("Elapsed time: {} s", (System.currentTimeMillis() - startTime) / 1000);
+		logger.info("Pages saved: {}", pagesSaved.get());
+		logger.info("Pages failed: {}", failedPages.size());
+		if (pagesUnchanged.get() > 0 || imagesUnchanged.get() > 0)
+			logger.info("Pages unchanged: {}, images unchanged: {}", pagesUnchanged.get(), imagesUnchanged.get());
+		if (imagesNotModified.get() > 0)
+			logger.info("Images not modified (304): {}", imagesNotModified.get());
+		if (pagesResumed.get() > 0)
+			logger.info("Pages already saved by the download resumed: {}", pagesResumed.get());
+		logger.info("Body requests avoided by the listing expansion: {}, body requested page by page: {}"
+				, bodyRequestsAvoided.get(), bodyRequests.get());
+		if (OwnerPageCache.getHitCount() + OwnerPageCache.getMissCount() > 0)
+			logger.info("Owner page lookups: {} from cache, {} requested"
+					, OwnerPageCache.getHitCount(), OwnerPageCache.getMissCount());
+		if (BlobStore.isEnabled())
+			logger.info("Image blobs stored: {}, same content already stored: {}, downloads shared: {}"
+					, new Object[]{BlobStore.getStoredCount(), BlobStore.getExistingCount(), BlobStore.getSharedDownloadCount()});
+		logger.info("HTTP requests: {}", HttpClient.getRequestCount());
+		logger.info("Retries: {} ({} waited for Retry-After), requests given up: {}"
+				, new Object[]{RetryPolicy.getRetryCount(), RetryPolicy.getRetryAfterCount(), RetryPolicy.getFailureCount()});
+		logger.info("Concurrency limit: {} at the end, lowest {}, lowered {} times"
+				, new Object[]{ConcurrencyLimiter.getLimit(), ConcurrencyLimiter.getLowestLimit(), ConcurrencyLimiter.getDecreaseCount()});
+		int httpsRequests = HttpClient.getHttpsRequestCount();
+		if (httpsRequests > 0) {
+			int connections = HttpClient.getHttpsConnectionCount();
+			logger.info("HTTPS connections opened: {}, requests on a reused connection: {} of {}"
+					, new Object[]{connections, Math.max(0, httpsRequests - connections), httpsRequests});
+		}
+		int httpRequests = HttpClient.getRequestCount() - httpsRequests;
+		if (httpRequests > 0) {
+			// HttpURLConnection has no socket factory for plain HTTP, its connections cannot be counted.
+			logger.info("HTTP (not HTTPS) requests: {}, connection reuse is measured for HTTPS only", httpRequests);
+		}
+		for (String page : failedPages) {
+			logger.error("  {}", page);
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.utils.ConfluenceRESTUtils;
+import org.mar9000.space2latex.utils.IOUtils;
+
+/**
+ * The pages owning the attachments referenced by other pages (ri:page), by space and title.
+ * Many pages usually reference the images of the same page, it is looked up once and shared
+ * by all the download workers. The cache can be kept on disk between downloads, an owner page
+ * loaded from disk that can not be listed any more is looked up again.
+ */
+public class OwnerPageCache {
+
+	public static final String CACHE_FILE = "space2latex-owner-pages.txt";
+
+	private static ConcurrentHashMap<String, FutureTask<OwnerPage>> owners =
+			new ConcurrentHashMap<String, FutureTask<OwnerPage>>();
+	private static AtomicInteger hits = new AtomicInteger();
+	private static AtomicInteger misses = new AtomicInteger();
+	private static File file = null;
+
+	public static class OwnerPage {
+		public String id = null;
+		public String self = null;
+		// Loaded from disk, not yet confirmed by this download.
+		public boolean fromDisk = false;
+	}
+
+	/**
+	 * Return the owner page, queryURL is the "?title=...&spaceKey=..." query to send if not cached.
+	 */
+	public static OwnerPage getOwnerPage(final String space, final String title, final String queryURL)
+			throws MalformedURLException {
+		String key = space + "\t" + title;
+		FutureTask<OwnerPage> task = new FutureTask<OwnerPage>(new Callable<OwnerPage>() {
+			@Override
+			public OwnerPage call() throws Exception {
+				JSONObject jsonQuery = ConfluenceRESTUtils.getURLResponse(queryURL);
+				if (jsonQuery.getInt(WikiPage.JSON_SIZE_ATTR) == 0)
+					throw new RuntimeException("Page \"" + title + "\" in space " + space + " not found.");
+				JSONObject jsonPage = (JSONObject)jsonQuery.getJSONArray(WikiPage.JSON_RESULTS_ATTR).get(0);
+				OwnerPage owner = new OwnerPage();
+				owner.id = jsonPage.getString(WikiPage.JSON_ID_ATTR);
+				owner.self = jsonPage.getJSONObject(WikiPage.JSON_LINKS_ATTR).getString(WikiPage.JSON_SELF_ATTR);
+				return owner;
+			}
+		});
+		FutureTask<OwnerPage> existing = owners.putIfAbsent(key, task);
+		if (existing != null) {
+			hits.incrementAndGet();
+			task = existing;
+		} else {
+			misses.incrementAndGet();
+			task.run();
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while looking up page " + title);
+		} catch (ExecutionException e) {
+			// Not found pages are not cached, as before every reference reports the error.
+			owners.remove(key, task);
+			if (e.getCause() instanceof MalformedURLException)
+				throw (MalformedURLException)e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Forget an owner page loaded from disk, the next request looks it up again.
+	 */
+	public static void invalidate(String space, String title, OwnerPage owner) {
+		FutureTask<OwnerPage> task = owners.get(space + "\t" + title);
+		if (task == null || !task.isDone())
+			return;
+		try {
+			if (task.get() == owner)
+				owners.remove(space + "\t" + title, task);
+		} catch (Exception e) {
+			// Failed tasks are removed by getOwnerPage().
+		}
+	}
+
+	/**
+	 * Keep the cache in the file, loading the owner pages already saved.
+	 */
+	public static synchronized void load(File cacheFile) throws IOException {
+		file = cacheFile;
+		if (!file.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 4)
+					continue;
+				OwnerPage owner = new OwnerPage();
+				owner.id = fields[2];
+				owner.self = fields[3];
+				owner.fromDisk = true;
+				FutureTask<OwnerPage> task = new FutureTask<OwnerPage>(new Runnable() {
+					@Override
+					public void run() {
+						// Already known.
+					}
+				}, owner);
+				task.run();
+				owners.put(fields[0] + "\t" + fields[1], task);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Save the owner pages found so far, if the cache is kept on disk.
+	 */
+	public static synchronized void save() throws IOException {
+		if (file == null)
+			return;
+		File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+		try {
+			for (String key : owners.keySet()) {
+				FutureTask<OwnerPage> task = owners.get(key);
+				if (task == null || !task.isDone())
+					continue;
+				OwnerPage owner = null;
+				try {
+					owner = task.get();
+				} catch (Exception e) {
+					continue;
+				}
+				writer.write(key + "\t" + owner.id + "\t" + owner.self + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		IOUtils.replaceFile(tmpFile, file);
+	}
+
+	public static int getHitCount() {
+		return hits.get();
+	}
+
+	public static int getMissCount() {
+		return misses.get();
+	}
+
+}
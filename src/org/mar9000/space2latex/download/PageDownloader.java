@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.mar9000.space2latex.PageDirectory;
+import org.mar9000.space2latex.PageStore;
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.slf4j.Logger;
+
+/**
+ * Download and save pages returned by the REST API.
+ * With one thread pages are downloaded by the caller thread, with more threads each page
+ * (fetch, body expansion, images and save) is handled by a worker of a bounded pool while
+ * the caller continues with the pagination. In both cases errors are reported per page
+ * without aborting the download.
+ * Pages saved are recorded into the manifest, if any, and with an incremental manifest
+ * pages whose version did not change are skipped.
+ * Pages saved are also recorded into the journal, if any, pages already saved by the download
+ * being resumed are skipped.
+ */
+public class PageDownloader {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(PageDownloader.class);
+
+	// Pages waiting for a worker, for each thread. Bounds the memory used by the JSON of queued pages.
+	private static final int QUEUED_PAGES_PER_THREAD = 2;
+
+	private File destDir = null;
+	private PageStore store = null;
+	private ExecutorService executor = null;
+	private Semaphore slots = null;
+	private PageManifest manifest = null;
+	private DownloadJournal journal = null;
+	// Attachments listed by this download.
+	private AttachmentIndex.Cache attachmentIndexes = new AttachmentIndex.Cache();
+
+	public PageDownloader(File destDir, int threads) {
+		this(destDir, threads, null);
+	}
+
+	public PageDownloader(File destDir, int threads, PageManifest manifest) {
+		this(destDir, threads, manifest, null);
+	}
+
+	public PageDownloader(File destDir, int threads, PageManifest manifest, DownloadJournal journal) {
+		this(destDir, new PageDirectory(destDir), threads, manifest, journal);
+	}
+
+	/**
+	 * Page files are saved into store, images into destDir.
+	 */
+	public PageDownloader(File destDir, PageStore store, int threads, PageManifest manifest, DownloadJournal journal) {
+		this.destDir = destDir;
+		this.store = store;
+		this.manifest = manifest;
+		this.journal = journal;
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads);
+			slots = new Semaphore(threads * (QUEUED_PAGES_PER_THREAD + 1));
+			LOGGER.info("Download pages with {} threads.", threads);
+		}
+	}
+
+	/**
+	 * Download and save a page, blocks while the workers are all busy and the queue is full.
+	 */
+	public void submit(final JSONObject jsonPage) {
+		// Position in the listing, for the journal.
+		final int position = journal != null ? journal.nextPage() : -1;
+		if (manifest != null && manifest.isPageUnchanged(jsonPage)) {
+			LOGGER.info("  Page unchanged: {}", jsonPage.optString(WikiPage.JSON_TITLE_ATTR));
+			DownloadStats.pageUnchanged();
+			pageSkipped(jsonPage, position);
+			return;
+		}
+		if (journal != null && journal.isDone(jsonPage.getString(WikiPage.JSON_ID_ATTR))) {
+			LOGGER.info("  Page already downloaded: {}", jsonPage.optString(WikiPage.JSON_TITLE_ATTR));
+			DownloadStats.pageResumed();
+			pageSkipped(jsonPage, position);
+			return;
+		}
+		if (executor == null) {
+			download(jsonPage, position);
+			return;
+		}
+		slots.acquireUninterruptibly();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					download(jsonPage, position);
+				} finally {
+					slots.release();
+				}
+			}
+		});
+	}
+
+	private void download(JSONObject jsonPage, int position) {
+		String pageName = jsonPage.optString(WikiPage.JSON_TITLE_ATTR)
+				+ "(" + jsonPage.optString(WikiPage.JSON_ID_ATTR) + ")";
+		try {
+			WikiPage page = WikiPage.getWikiPage(jsonPage, destDir, manifest, attachmentIndexes);
+			page.save(store);
+			pageSaved(page, position);
+		} catch (Exception e) {
+			LOGGER.error("Error downloading page " + pageName, e);
+			DownloadStats.pageFailed(pageName + ": " + e.getMessage());
+		}
+	}
+
+	private void pageSaved(WikiPage page, int position) throws IOException {
+		if (manifest != null)
+			manifest.pageSaved(page, PageManifest.getVersion(page.json));
+		if (journal != null && manifest != null)
+			journal.pageSaved(position, page, manifest);
+		DownloadStats.pageSaved();
+	}
+
+	private void pageSkipped(JSONObject jsonPage, int position) {
+		if (journal == null)
+			return;
+		try {
+			journal.pageDone(position);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing journal " + journal.getFile().getAbsolutePath()
+					+ " for page " + jsonPage.optString(WikiPage.JSON_TITLE_ATTR), e);
+		}
+	}
+
+	/**
+	 * Wait for the pages still in progress.
+	 */
+	public void finish() {
+		if (executor == null)
+			return;
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				LOGGER.debug("Waiting for pages still in progress.");
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mar9000.space2latex.PageDirectory;
+import org.mar9000.space2latex.PageStore;
+import org.mar9000.space2latex.WikiImage;
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.mar9000.space2latex.utils.IOUtils;
+import org.slf4j.Logger;
+
+/**
+ * Versions of the pages and of the attachments saved into the download directory, kept in
+ * a tab separated file next to the page files. The incremental download uses it to skip the pages
+ * whose version did not change and the images already saved with the same version.
+ * A page is downloaded again also when one of its attachments changed, attachment uploads do not
+ * change the page version.
+ * The ETag and Last-Modified of the saved images are kept too, they are sent with the next
+ * download of the image, incremental or not, so that an unchanged image is not transferred again.
+ */
+public class PageManifest {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(PageManifest.class);
+
+	public static final String MANIFEST_FILE = "space2latex-manifest.txt";
+	public static final String JSON_VERSION_ATTR = "version";
+	public static final String JSON_NUMBER_ATTR = "number";
+	private static final String PAGE_RECORD = "page";
+	private static final String ATTACHMENT_RECORD = "attachment";
+
+	private File destDir = null;
+	private PageStore store = null;
+	private boolean incremental = false;
+	// By page id.
+	private Map<String, PageEntry> pages = new HashMap<String, PageEntry>();
+	// By page id + "/" + attachment title.
+	private Map<String, AttachmentEntry> attachments = new HashMap<String, AttachmentEntry>();
+	private Set<String> seenPages = new HashSet<String>();
+
+	private static class PageEntry {
+		int version = -1;
+		String fileName = null;
+		String title = null;
+	}
+
+	private static class AttachmentEntry {
+		String pageId = null;
+		String title = null;
+		int version = -1;
+		String fileName = null;
+		String etag = null;
+		String lastModified = null;
+		// Set when saved by BlobStore.
+		String blob = null;
+	}
+
+	public PageManifest(File destDir, boolean incremental) {
+		this(destDir, new PageDirectory(destDir), incremental);
+	}
+
+	/**
+	 * The page files are saved into store, the images into destDir.
+	 */
+	public PageManifest(File destDir, PageStore store, boolean incremental) {
+		this.destDir = destDir;
+		this.store = store;
+		this.incremental = incremental;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Return the version of a page or attachment JSON, -1 if not expanded.
+	 */
+	public static int getVersion(JSONObject json) {
+		JSONObject version = json.optJSONObject(JSON_VERSION_ATTR);
+		if (version == null)
+			return -1;
+		return version.optInt(JSON_NUMBER_ATTR, -1);
+	}
+
+	public File getFile() {
+		return new File(destDir, MANIFEST_FILE);
+	}
+
+	public synchronized void load() throws IOException {
+		File file = getFile();
+		if (!file.exists())
+			return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				readRecord(line);
+			}
+		} finally {
+			reader.close();
+		}
+		LOGGER.info("Manifest loaded: {} pages, {} attachments", pages.size(), attachments.size());
+	}
+
+	/**
+	 * Read a line of the manifest, also used to replay the records of a journal.
+	 */
+	synchronized void readRecord(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields[0].equals(PAGE_RECORD) && fields.length == 5) {
+			PageEntry entry = new PageEntry();
+			entry.version = Integer.parseInt(fields[2]);
+			entry.fileName = fields[3];
+			entry.title = fields[4];
+			pages.put(fields[1], entry);
+		} else if (fields[0].equals(ATTACHMENT_RECORD) && fields.length >= 5) {
+			AttachmentEntry entry = new AttachmentEntry();
+			entry.pageId = fields[1];
+			entry.title = fields[2];
+			entry.version = Integer.parseInt(fields[3]);
+			entry.fileName = fields[4];
+			if (fields.length >= 7) {
+				entry.etag = fields[5].length() > 0 ? fields[5] : null;
+				entry.lastModified = fields[6].length() > 0 ? fields[6] : null;
+			}
+			if (fields.length == 8 && fields[7].length() > 0)
+				entry.blob = fields[7];
+			attachments.put(entry.pageId + "/" + entry.title, entry);
+		}
+	}
+
+	private static String pageRecord(String id, PageEntry entry) {
+		return PAGE_RECORD + "\t" + id + "\t" + entry.version + "\t" + entry.fileName + "\t" + entry.title;
+	}
+
+	private static String attachmentRecord(AttachmentEntry entry) {
+		return ATTACHMENT_RECORD + "\t" + entry.pageId + "\t" + entry.title + "\t" + entry.version
+				+ "\t" + entry.fileName + "\t" + (entry.etag != null ? entry.etag : "")
+				+ "\t" + (entry.lastModified != null ? entry.lastModified : "")
+				+ "\t" + (entry.blob != null ? entry.blob : "");
+	}
+
+	/**
+	 * Return the lines recorded for a page just saved and its images, see {@link #readRecord(String)}.
+	 */
+	synchronized List<String> getRecords(WikiPage page) {
+		List<String> records = new ArrayList<String>();
+		PageEntry entry = pages.get(page.id);
+		if (entry != null)
+			records.add(pageRecord(page.id, entry));
+		Set<String> keys = new HashSet<String>();
+		for (String title : page.images.keySet()) {
+			keys.add(page.images.get(title).pageId + "/" + title);
+		}
+		JSONArray listed = getListedAttachments(page.json);
+		for (int a = 0; listed != null && a < listed.length(); a++) {
+			keys.add(page.id + "/" + listed.getJSONObject(a).getString(WikiPage.JSON_TITLE_ATTR));
+		}
+		for (String key : keys) {
+			AttachmentEntry attachmentEntry = attachments.get(key);
+			if (attachmentEntry != null)
+				records.add(attachmentRecord(attachmentEntry));
+		}
+		return records;
+	}
+
+	/**
+	 * Write to a temporary file then rename, an interrupted save leaves the previous manifest.
+	 */
+	public synchronized void save() throws IOException {
+		File tmpFile = new File(destDir, MANIFEST_FILE + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+		try {
+			for (String id : pages.keySet()) {
+				writer.write(pageRecord(id, pages.get(id)) + "\n");
+			}
+			for (AttachmentEntry entry : attachments.values()) {
+				writer.write(attachmentRecord(entry) + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		IOUtils.replaceFile(tmpFile, getFile());
+	}
+
+	/**
+	 * The attachments expanded on the listing of a page, null if not expanded.
+	 */
+	private static JSONArray getListedAttachments(JSONObject jsonPage) {
+		if (jsonPage == null)
+			return null;
+		JSONObject children = jsonPage.optJSONObject(AttachmentIndex.JSON_CHILDREN_ATTR);
+		if (children == null || children.optJSONObject(AttachmentIndex.JSON_ATTACHMENT_ATTR) == null)
+			return null;
+		return children.getJSONObject(AttachmentIndex.JSON_ATTACHMENT_ATTR).optJSONArray(WikiPage.JSON_RESULTS_ATTR);
+	}
+
+	/**
+	 * True if the page file is on disk with the version of the listed page and none of
+	 * the attachments expanded on the listing changed. An attachment not recorded, new
+	 * or whose download failed, is a change. Always false if not incremental.
+	 */
+	public synchronized boolean isPageUnchanged(JSONObject jsonPage) {
+		String id = jsonPage.getString(WikiPage.JSON_ID_ATTR);
+		seenPages.add(id);
+		if (!incremental)
+			return false;
+		PageEntry entry = pages.get(id);
+		int version = getVersion(jsonPage);
+		if (entry == null || version == -1 || entry.version != version)
+			return false;
+		if (!store.exists(entry.fileName))
+			return false;
+		JSONArray listed = getListedAttachments(jsonPage);
+		for (int a = 0; listed != null && a < listed.length(); a++) {
+			JSONObject attachment = listed.getJSONObject(a);
+			AttachmentEntry attachmentEntry = attachments.get(id + "/" + attachment.getString(WikiPage.JSON_TITLE_ATTR));
+			if (attachmentEntry == null || attachmentEntry.version != getVersion(attachment))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * True if the attachment has been saved with this version and the file is still there.
+	 * Always false if not incremental.
+	 */
+	public synchronized boolean isAttachmentUnchanged(String pageId, String title, int version) {
+		if (!incremental)
+			return false;
+		AttachmentEntry entry = attachments.get(pageId + "/" + title);
+		if (entry == null || version == -1 || entry.version != version)
+			return false;
+		return isSaved(entry);
+	}
+
+	/**
+	 * True if the attachment file is on disk, saved the same way, into the page directory
+	 * or by BlobStore, of this download.
+	 */
+	private boolean isSaved(AttachmentEntry entry) {
+		if (entry.fileName.length() == 0)
+			return false;
+		if (BlobStore.isEnabled() != (entry.blob != null))
+			return false;
+		if (entry.blob != null)
+			return new File(destDir, entry.blob).exists();
+		return new File(new File(destDir, entry.pageId), entry.fileName).exists();
+	}
+
+	/**
+	 * Set the ETag, Last-Modified and blob of the image if it is still on disk.
+	 */
+	public synchronized void fillValidators(WikiImage image, String title) {
+		AttachmentEntry entry = attachments.get(image.pageId + "/" + title);
+		if (entry == null || !entry.fileName.equals(image.filename))
+			return;
+		if (!isSaved(entry))
+			return;
+		image.etag = entry.etag;
+		image.lastModified = entry.lastModified;
+		image.blob = entry.blob;
+	}
+
+	/**
+	 * Record a page just saved with its images.
+	 */
+	public synchronized void pageSaved(WikiPage page, int version) throws IOException {
+		seenPages.add(page.id);
+		String fileName = page.getFileName();
+		PageEntry entry = pages.get(page.id);
+		if (entry != null && !entry.fileName.equals(fileName)) {
+			// Renamed page.
+			store.delete(entry.fileName);
+		}
+		entry = new PageEntry();
+		entry.version = version;
+		entry.fileName = fileName;
+		entry.title = page.title;
+		pages.put(page.id, entry);
+		for (String title : page.images.keySet()) {
+			WikiImage image = page.images.get(title);
+			String key = image.pageId + "/" + title;
+			// Failed downloads are not recorded, the entry of a file kept stays as it is. Images not
+			// downloaded this time, unchanged or without download URL, are updated only if already recorded.
+			if (image.status == WikiImage.MISSING || image.status == WikiImage.KEPT
+					|| (image.status == WikiImage.NOT_DOWNLOADED && !attachments.containsKey(key)))
+				continue;
+			AttachmentEntry attachmentEntry = new AttachmentEntry();
+			attachmentEntry.pageId = image.pageId;
+			attachmentEntry.title = title;
+			attachmentEntry.version = image.version;
+			attachmentEntry.fileName = image.filename;
+			attachmentEntry.etag = image.etag;
+			attachmentEntry.lastModified = image.lastModified;
+			attachmentEntry.blob = image.blob;
+			attachments.put(key, attachmentEntry);
+		}
+		// The attachments not used by the page are recorded without file, so that they
+		// are not taken as new by the next download.
+		JSONArray listed = getListedAttachments(page.json);
+		for (int a = 0; listed != null && a < listed.length(); a++) {
+			JSONObject attachment = listed.getJSONObject(a);
+			String title = attachment.getString(WikiPage.JSON_TITLE_ATTR);
+			String key = page.id + "/" + title;
+			if (page.images.containsKey(title) && page.id.equals(page.images.get(title).pageId))
+				continue;
+			AttachmentEntry attachmentEntry = new AttachmentEntry();
+			attachmentEntry.pageId = page.id;
+			attachmentEntry.title = title;
+			attachmentEntry.version = getVersion(attachment);
+			attachmentEntry.fileName = "";
+			attachments.put(key, attachmentEntry);
+		}
+	}
+
+	/**
+	 * Delete the page files of the pages not returned by the listing, return their titles.
+	 * To be called only after a complete listing.
+	 */
+	public synchronized List<String> removeUnseenPages() throws IOException {
+		List<String> removed = new ArrayList<String>();
+		for (String id : new ArrayList<String>(pages.keySet())) {
+			if (seenPages.contains(id))
+				continue;
+			// Still recorded if the file cannot be deleted.
+			PageEntry entry = pages.get(id);
+			store.delete(entry.fileName);
+			pages.remove(id);
+			removed.add(entry.title);
+		}
+		return removed;
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.download;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.mar9000.space2latex.utils.ConfluenceRESTUtils;
+import org.slf4j.Logger;
+
+/**
+ * Paginate a REST query in a background thread.
+ * The first request is done alone to know if the URL returns a single page or a space listing,
+ * then up to "windows" start/limit requests are kept in flight. Pages are handed off in order
+ * through a bounded queue: when the consumer is slower than the network the prefetcher waits.
+ * Responses are parsed while read, page by page, the pages of the first response reach the queue
+ * before the response has been read to the end.
+ * Bodies and attachments are expanded on the listing, see {@link ConfluenceRESTUtils#LISTING_EXPAND}.
+ * The listing is complete when the server returned less pages than requested, so that pages
+ * missing from it can be considered deleted.
+ */
+public class PagePrefetcher implements Runnable {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(PagePrefetcher.class);
+
+	// Put into the queue after the last page.
+	private static final JSONObject END = new JSONObject();
+
+	private String urlString = null;
+	private int start = 0;
+	private int limit = 0;
+	private int windows = 1;
+	private BlockingQueue<JSONObject> queue = null;
+	private ExecutorService requests = null;
+	private Thread thread = null;
+	private volatile Exception error = null;
+	private volatile boolean complete = false;
+
+	public PagePrefetcher(String urlString, int start, int limit, int windows) throws MalformedURLException {
+		this(urlString, start, limit, windows, ConfluenceRESTUtils.LISTING_EXPAND);
+	}
+
+	public PagePrefetcher(String urlString, int start, int limit, int windows, String expand) throws MalformedURLException {
+		this.urlString = ConfluenceRESTUtils.addExpand(urlString, expand);
+		this.start = start;
+		this.limit = limit;
+		this.windows = windows < 1 ? 1 : windows;
+		this.queue = new ArrayBlockingQueue<JSONObject>(this.windows * ConfluenceRESTUtils.LIMIT_FOR_REQUEST);
+		this.requests = Executors.newFixedThreadPool(this.windows);
+	}
+
+	public void start() {
+		thread = new Thread(this, "page-prefetcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the prefetcher, used when the consumer does not read all the pages.
+	 */
+	public void stop() {
+		requests.shutdownNow();
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Return the next page, or null after the last one.
+	 */
+	public JSONObject take() throws MalformedURLException {
+		JSONObject json = null;
+		try {
+			json = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for pages.");
+		}
+		if (json != END)
+			return json;
+		// Let the next take() return the end too.
+		queue.offer(END);
+		if (error instanceof MalformedURLException)
+			throw (MalformedURLException)error;
+		if (error instanceof RuntimeException)
+			throw (RuntimeException)error;
+		if (error != null)
+			throw new RuntimeException(error);
+		return null;
+	}
+
+	/**
+	 * True if the whole listing has been read, to be called after take() returned null.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				paginate();
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				// Pages already fetched are handed off anyway, then take() throws the error.
+				error = e;
+			}
+			queue.put(END);
+		} catch (InterruptedException e) {
+			LOGGER.debug("Prefetcher stopped.");
+		} finally {
+			requests.shutdownNow();
+		}
+	}
+
+	private void paginate() throws Exception {
+		int currentLimit = limit < ConfluenceRESTUtils.LIMIT_FOR_REQUEST ? limit : ConfluenceRESTUtils.LIMIT_FOR_REQUEST;
+		// Pages of the first response are handed off while the response is read.
+		System.out.println("Request pages: start=" + start + ", limit=" + currentLimit);
+		final int[] received = new int[]{0};
+		JSONObject single = ConfluenceRESTUtils.getURLPages(urlString, start, currentLimit, new ConfluenceRESTUtils.PageConsumer() {
+			@Override
+			public void page(JSONObject page) throws InterruptedException {
+				queue.put(page);
+				received[0]++;
+			}
+		});
+		if (single != null) {
+			// Single page query.
+			queue.put(single);
+			return;
+		}
+		// A space query, the next requests are kept in flight.
+		LinkedList<Future<List<JSONObject>>> inFlight = new LinkedList<Future<List<JSONObject>>>();
+		LinkedList<Integer> inFlightLimits = new LinkedList<Integer>();
+		int requested = currentLimit;
+		int results = received[0];
+		while (true) {
+			// Less records than requested means there is nothing else to download.
+			boolean last = results < currentLimit || results == 0;
+			while (!last && inFlight.size() < windows && requested < limit) {
+				int windowLimit = (limit-requested) < ConfluenceRESTUtils.LIMIT_FOR_REQUEST ?
+						limit-requested : ConfluenceRESTUtils.LIMIT_FOR_REQUEST;
+				inFlight.add(requests.submit(request(start + requested, windowLimit)));
+				inFlightLimits.add(windowLimit);
+				requested += windowLimit;
+			}
+			if (last) {
+				complete = true;
+				return;
+			}
+			if (inFlight.isEmpty())
+				return;
+			currentLimit = inFlightLimits.removeFirst();
+			List<JSONObject> pages = null;
+			try {
+				pages = inFlight.removeFirst().get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception)e.getCause();
+				throw e;
+			}
+			for (JSONObject page : pages) {
+				queue.put(page);
+			}
+			results = pages.size();
+		}
+	}
+
+	/**
+	 * A window request, its pages wait for the previous windows to be handed off.
+	 */
+	private Callable<List<JSONObject>> request(final int windowStart, final int windowLimit) {
+		return new Callable<List<JSONObject>>() {
+			@Override
+			public List<JSONObject> call() throws Exception {
+				System.out.println("Request pages: start=" + windowStart + ", limit=" + windowLimit);
+				final List<JSONObject> pages = new ArrayList<JSONObject>();
+				JSONObject single = ConfluenceRESTUtils.getURLPages(urlString, windowStart, windowLimit
+						, new ConfluenceRESTUtils.PageConsumer() {
+					@Override
+					public void page(JSONObject page) {
+						pages.add(page);
+					}
+				});
+				if (single != null)
+					throw new RuntimeException("Unknown response from server:" + single.toString());
+				return pages;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.latex;
+
+import java.util.List;
+
+import org.jsoup.nodes.Element;
+
+/**
+ * Format an element of the storage format, registered into {@link Formatter} by element name
+ * and, for macros, by ac:name. Handlers are shared by all the formatters and must not keep state.
+ */
+public interface ElementHandler {
+
+	/**
+	 * Add to result the latex elements of element, the children are formatted with formatter.formatNodes().
+	 */
+	public void format(Formatter formatter, Element element, List<LatexElement> result);
+
+}
@@ -18,28 +18,27 @@ package org.mar9000.space2latex.latex;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
 import org.jsoup.select.Elements;
+import org.mar9000.space2latex.StorageFormatReader;
 import org.mar9000.space2latex.WikiImage;
 import org.mar9000.space2latex.WikiPage;
 import org.mar9000.space2latex.WikiPages;
 import org.mar9000.space2latex.log.S2LLogUtils;
 import org.slf4j.Logger;
-import org.w3c.css.sac.InputSource;
-import org.w3c.dom.css.CSSPrimitiveValue;
-import org.w3c.dom.css.CSSStyleDeclaration;
-import org.w3c.dom.css.CSSValue;
-import org.w3c.dom.css.RGBColor;
-
-import com.steadystate.css.parser.CSSOMParser;
 
 public class Formatter {
 
@@ -51,16 +50,58 @@ public class Formatter {
 	private WikiPages pages = null;
 	private Map<String, Label> labels = new HashMap<String, Label>();
 
+	// Operations on the state shared by the pages: labels, chapters and verbatim definitions.
+	// Run at once, or recorded by the workers of the parallel format and run in page order.
+	private List<Runnable> sharedOperations = null;
+
 	public Formatter(File downloadDir, WikiPages pages, LatexDocument latexDocument) {
 		this.downloadDir = downloadDir;
 		this.latexDocument = latexDocument;
 		this.pages = pages;
 	}
 
+	/**
+	 * A worker of the parallel format, shared operations are recorded.
+	 */
+	private Formatter(Formatter formatter) {
+		this(formatter.downloadDir, formatter.pages, formatter.latexDocument);
+		this.labels = formatter.labels;
+		this.createMissingChapters = formatter.createMissingChapters;
+		this.sharedOperations = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * An element added when formatted and replaced by a shared operation.
+	 */
+	private static class Pending implements LatexElement {
+	}
+
+	/**
+	 * A page formatted by a worker and the operations recorded formatting it.
+	 */
+	private static class FormattedPage {
+		WikiPage page = null;
+		List<LatexElement> elements = new ArrayList<LatexElement>();
+		List<Runnable> sharedOperations = null;
+	}
+
 	private Stack<WikiPage> pagesStack = new Stack<WikiPage>();
 	private boolean createMissingChapters = true;
 	public void format(boolean createMissingChapters) {
+		format(createMissingChapters, 1);
+	}
+
+	/**
+	 * Format the pages with more threads, each page on its own worker. The operations on the
+	 * shared state are run afterwards in the order of the sequential format, so that the document
+	 * is the same whatever the number of threads.
+	 */
+	public void format(boolean createMissingChapters, int threads) {
 		this.createMissingChapters = createMissingChapters;
+		if (threads > 1) {
+			formatParallel(threads);
+			return;
+		}
 		for (WikiPage page : pages.values()) {
 			if (page.isExcluded) {
 				LOGGER.info("Page excluded as requested: {}", page.title);
@@ -71,15 +112,111 @@ public class Formatter {
 			if (chapter == null)
 				continue;
 			LOGGER.info("Format page: {}", page.title);
-			if (page.alreadyIncluded) {
-				LOGGER.warn("I'm going to format a page already included: {}", page.title);
-			}
-			page.alreadyIncluded = true;
-			formatNodes(page.pageContent.childNodes(), chapter.elements);
+			included(page, "I'm going to format a page already included: {}");
+			formatPage(page, chapter.elements);
 			pagesStack.pop();
 		}
 	}
 
+	private void formatParallel(int threads) {
+		List<WikiPage> pagesToFormat = new ArrayList<WikiPage>();
+		for (WikiPage page : pages.values()) {
+			if (page.isExcluded) {
+				LOGGER.info("Page excluded as requested: {}", page.title);
+				continue;
+			}
+			// Only chapters of the document unless missing chapters are created.
+			if (!createMissingChapters && latexDocument.getChapter(page.title, false) == null)
+				continue;
+			pagesToFormat.add(page);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<FormattedPage>> futures = new ArrayList<Future<FormattedPage>>();
+			for (final WikiPage page : pagesToFormat) {
+				futures.add(executor.submit(new Callable<FormattedPage>() {
+					@Override
+					public FormattedPage call() {
+						Formatter worker = new Formatter(Formatter.this);
+						FormattedPage formattedPage = new FormattedPage();
+						formattedPage.page = page;
+						worker.pagesStack.push(page);
+						LOGGER.info("Format page: {}", page.title);
+						worker.included(page, "I'm going to format a page already included: {}");
+						worker.formatPage(page, formattedPage.elements);
+						formattedPage.sharedOperations = worker.sharedOperations;
+						return formattedPage;
+					}
+				}));
+			}
+			// Merge in page order.
+			for (Future<FormattedPage> future : futures) {
+				FormattedPage formattedPage = getFormattedPage(future);
+				Chapter chapter = latexDocument.getChapter(formattedPage.page.title, createMissingChapters);
+				for (Runnable operation : formattedPage.sharedOperations) {
+					operation.run();
+				}
+				chapter.elements.addAll(formattedPage.elements);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static FormattedPage getFormattedPage(Future<FormattedPage> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while formatting pages");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void shared(Runnable operation) {
+		if (sharedOperations != null)
+			sharedOperations.add(operation);
+		else
+			operation.run();
+	}
+
+	/**
+	 * Mark the page as included, warning if it already was. A shared operation, so that
+	 * which page is warned about does not depend on the order the workers run.
+	 */
+	private void included(final WikiPage page, final String warning) {
+		shared(new Runnable() {
+			@Override
+			public void run() {
+				if (page.alreadyIncluded) {
+					LOGGER.warn(warning, page.title);
+				}
+				page.alreadyIncluded = true;
+			}
+		});
+	}
+
+	/**
+	 * Format the content of a page one top level node at a time, see {@link StorageFormatReader}.
+	 */
+	private void formatPage(WikiPage page, List<LatexElement> result) {
+		StorageFormatReader reader = page.getContentReader();
+		try {
+			List<Node> nodes = null;
+			while ((nodes = reader.next()) != null) {
+				formatNodes(nodes, result);
+			}
+		} finally {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				LOGGER.warn("Error closing page {}: {}", page.title, e.getMessage());
+			}
+		}
+	}
+
 	private boolean insideTable = false;
 	private boolean insideList = false;
 	public void formatNodes(List<Node> nodes, List<LatexElement> result) {
@@ -89,526 +226,751 @@ public class Formatter {
 				result.add(new TextElement(nodeText));
 			} else if (node instanceof Element) {
 				Element element = (Element)node;
-				if (element.nodeName().equals("p")) {
-					Paragraph p = new Paragraph();
-					result.add(p);
-					formatNodes(element.childNodes(), p.elements);
-				} else if (element.nodeName().equals("h1")) {
-					LatexElements le = null;
-					if (insideTable) {
-						Hx hx = new Hx();
-						hx.fontSize = "Huge";
-						le = hx;
-					} else {
-						LOGGER.warn("Warning H1 elements typeset LaTeX sections like H2 elements, page: {}", pagesStack.peek().title);
-						Section section = new Section(Section.TYPE_SECTION);
-						le = section;
+				getHandler(element).format(this, element, result);
+			} else {
+				throw new IllegalArgumentException("Node " + node.nodeName() + " not supported.");
+			}
+		}
+	}
+
+	static ElementHandler getHandler(Element element) {
+		String nodeName = element.nodeName();
+		ElementHandler handler = handlers.get(nodeName);
+		if (handler == null) {
+			Map<String, ElementHandler> byMacroName = macroHandlers.get(nodeName);
+			if (byMacroName != null)
+				handler = byMacroName.get(element.attr("ac:name"));
+		}
+		if (handler == null)
+			throw new IllegalArgumentException("Element " + nodeName + " not supported.");
+		return handler;
+	}
+
+	/**
+	 * Format the elements named nodeName with handler, in place of the handler already registered.
+	 * Handlers are registered before formatting.
+	 */
+	public static void registerHandler(String nodeName, ElementHandler handler) {
+		handlers.put(nodeName, handler);
+	}
+
+	/**
+	 * Format the elements named nodeName whose ac:name attribute is macroName with handler,
+	 * used only if there is no handler for all the elements named nodeName.
+	 */
+	public static void registerHandler(String nodeName, String macroName, ElementHandler handler) {
+		Map<String, ElementHandler> byMacroName = macroHandlers.get(nodeName);
+		if (byMacroName == null) {
+			byMacroName = new HashMap<String, ElementHandler>();
+			macroHandlers.put(nodeName, byMacroName);
+		}
+		byMacroName.put(macroName, handler);
+	}
+
+	/**
+	 * Format the macro both as ac:macro and as ac:structured-macro with handler.
+	 */
+	public static void registerMacroHandler(String macroName, ElementHandler handler) {
+		registerHandler("ac:macro", macroName, handler);
+		registerHandler("ac:structured-macro", macroName, handler);
+	}
+
+	/**
+	 * The page formatted, or included, now.
+	 */
+	public WikiPage getCurrentPage() {
+		return pagesStack.peek();
+	}
+
+	public LatexDocument getLatexDocument() {
+		return latexDocument;
+	}
+
+	public boolean isInsideTable() {
+		return insideTable;
+	}
+
+	// By element name, and by ac:name of the element, see getHandler().
+	private static Map<String, ElementHandler> handlers = new HashMap<String, ElementHandler>();
+	private static Map<String, Map<String, ElementHandler>> macroHandlers = new HashMap<String, Map<String, ElementHandler>>();
+	static {
+		registerHandler("p", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Paragraph p = new Paragraph();
+				result.add(p);
+				f.formatNodes(element.childNodes(), p.elements);
+			}
+		});
+		registerHandler("h1", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LatexElements le = null;
+				if (f.insideTable) {
+					Hx hx = new Hx();
+					hx.fontSize = "Huge";
+					le = hx;
+				} else {
+					LOGGER.warn("Warning H1 elements typeset LaTeX sections like H2 elements, page: {}", f.pagesStack.peek().title);
+					Section section = new Section(Section.TYPE_SECTION);
+					le = section;
+				}
+				result.add(le);
+				f.formatNodes(element.childNodes(), le.elements);
+			}
+		});
+		registerHandler("h2", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LatexElements le = null;
+				if (f.insideTable) {
+					Hx hx = new Hx();
+					hx.fontSize = "huge";
+					le = hx;
+				} else {
+					// TODO: workaround because there is an image inside an H2 element.
+					if (element.childNodes().get(0).nodeName().equals("ac:image")) {
+						LOGGER.debug("Using workaround for image inside H2.");
+						// Do not create H2, create element inside current result.
+						f.formatNodes(element.childNodes(), result);
+						return;
 					}
-					result.add(le);
-					formatNodes(element.childNodes(), le.elements);
-				} else if (element.nodeName().equals("h2")) {
-					LatexElements le = null;
-					if (insideTable) {
-						Hx hx = new Hx();
-						hx.fontSize = "huge";
-						le = hx;
-					} else {
-						// TODO: workaround because there is an image inside an H2 element.
-						if (element.childNodes().get(0).nodeName().equals("ac:image")) {
-							LOGGER.debug("Using workaround for image inside H2.");
-							// Do not create H2, create element inside current result.
-							formatNodes(element.childNodes(), result);
-							continue;
+					Section section = new Section(Section.TYPE_SECTION);
+					le = section;
+				}
+				result.add(le);
+				f.formatNodes(element.childNodes(), le.elements);
+			}
+		});
+		registerHandler("h3", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LatexElements le = null;
+				if (f.insideTable) {
+					Hx hx = new Hx();
+					hx.fontSize = "LARGE";
+					le = hx;
+				} else {
+					Section section = new Section(Section.TYPE_SUBSECTION);
+					le = section;
+				}
+				result.add(le);
+				f.formatNodes(element.childNodes(), le.elements);
+			}
+		});
+		registerHandler("h4", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LatexElements le = null;
+				if (f.insideTable) {
+					Hx hx = new Hx();
+					hx.fontSize = "Large";
+					le = hx;
+				} else {
+					Section section = new Section(Section.TYPE_SUBSUBSECTION);
+					le = section;
+				}
+				result.add(le);
+				f.formatNodes(element.childNodes(), le.elements);
+			}
+		});
+		registerHandler("h5", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LatexElements le = null;
+				if (f.insideTable) {
+					Hx hx = new Hx();
+					hx.fontSize = "large";
+					le = hx;
+				} else {
+					Section section = new Section(Section.TYPE_PARAGRAPH);
+					le = section;
+				}
+				result.add(le);
+				f.formatNodes(element.childNodes(), le.elements);
+			}
+		});
+		registerHandler("h6", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Bold b = new Bold();
+				result.add(b);
+				f.formatNodes(element.childNodes(), b.elements);
+			}
+		});
+		registerHandler("em", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Emph e = new Emph();
+				result.add(e);
+				f.formatNodes(element.childNodes(), e.elements);
+			}
+		});
+		registerHandler("code", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				TextTT tt = new TextTT();
+				result.add(tt);
+				f.formatNodes(element.childNodes(), tt.elements);
+			}
+		});
+		registerHandler("s", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				St st = new St();
+				result.add(st);
+				f.formatNodes(element.childNodes(), st.elements);
+			}
+		});
+		registerHandler("u", new ElementHandler() {   // Underline.
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				TextUnderline underline = new TextUnderline();
+				result.add(underline);
+				f.formatNodes(element.childNodes(), underline.elements);
+			}
+		});
+		registerHandler("strong", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Bold b = new Bold();
+				result.add(b);
+				f.formatNodes(element.childNodes(), b.elements);
+			}
+		});
+		registerHandler("a", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				String href = element.attr("href");
+				Href h = new Href();
+				h.setUrl(href);
+				result.add(h);
+				f.formatNodes(element.childNodes(), h.elements);
+			}
+		});
+		registerHandler("ol", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				if (f.insideTable) {
+					if (f.insideList)
+						throw new IllegalArgumentException("It seems there is a list inside a list inside a table. Not supported.");
+					f.insideList = true;
+					f.formatNodes(element.childNodes(), result);
+					f.insideList = false;
+					return;
+				}
+				Ol o = new Ol();
+				result.add(o);
+				f.formatNodes(element.childNodes(), o.elements);
+			}
+		});
+		registerHandler("ul", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				if (f.insideTable) {
+					if (f.insideList)
+						throw new IllegalArgumentException("It seems there is a list inside a list inside a table. Not supported.");
+					f.insideList = true;
+					f.formatNodes(element.childNodes(), result);
+					f.insideList = false;
+					return;
+				}
+				Ul l = new Ul();
+				result.add(l);
+				f.formatNodes(element.childNodes(), l.elements);
+			}
+		});
+		registerHandler("li", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Li i = new Li();
+				if (f.insideTable)
+					i.useTabItem = true;
+				result.add(i);
+				f.formatNodes(element.childNodes(), i.elements);
+			}
+		});
+		registerHandler("div", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				// Divs are typeset as in-line content, as the div did not exist.
+				// TODO: once latex elements are subdivided in horizontal and vertical, this can
+				// probably be improved by closing the current vertical content and opening a new vertical one.
+				f.formatNodes(element.childNodes(), result);
+			}
+		});
+		registerHandler("br", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				result.add(new Newline());
+			}
+		});
+		registerMacroHandler("toc", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LOGGER.info("Page TOC omitted: {}", f.pagesStack.peek().title);
+			}
+		});
+		registerHandler("ac:structured-macro", "toc-zone", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				LOGGER.info("Page TOC-ZONE omitted: {}", f.pagesStack.peek().title);
+				Elements params = element.select("ac|parameter").select("[ac:name=includePages]");
+				if (params.size() == 0)
+					return;
+				if (params.get(0).text().equals("true")) {
+					Element richtext = element.select("ac|rich-text-body").first();
+					f.formatNodes(richtext.childNodes(), result);
+				}
+			}
+		});
+		registerMacroHandler("anchor", new ElementHandler() {
+			@Override
+			public void format(final Formatter f, Element element, List<LatexElement> result) {
+				final String anchor = element.text();
+				final String pageTitle = f.pagesStack.peek().title;
+				final List<LatexElement> container = result;
+				final LatexElement position = new Pending();
+				result.add(position);
+				f.shared(new Runnable() {
+					@Override
+					public void run() {
+						String labelString = Label.getLabelString(pageTitle, anchor);
+						Label label = f.labels.get(labelString);
+						if (label != null) {
+							// Found.
+							if (label.defined) {
+								// Label created by anchor definition.
+								LOGGER.error("Label '{}' already defined, page is {}", labelString, pageTitle);
+								replace(container, position, null);
+							} else {
+								// Label created by a link definition, define and add at this document point.
+								label.defined = true;
+								replace(container, position, label);
+							}
+						} else {
+							label = new Label(pageTitle, anchor);
+							label.defined = true;
+							f.labels.put(label.getLabelString(), label);
+							replace(container, position, label);
 						}
-						Section section = new Section(Section.TYPE_SECTION);
-						le = section;
 					}
-					result.add(le);
-					formatNodes(element.childNodes(), le.elements);
-				} else if (element.nodeName().equals("h3")) {
-					LatexElements le = null;
-					if (insideTable) {
-						Hx hx = new Hx();
-						hx.fontSize = "LARGE";
-						le = hx;
-					} else {
-						Section section = new Section(Section.TYPE_SUBSECTION);
-						le = section;
-					}
-					result.add(le);
-					formatNodes(element.childNodes(), le.elements);
-				} else if (element.nodeName().equals("h4")) {
-					LatexElements le = null;
-					if (insideTable) {
-						Hx hx = new Hx();
-						hx.fontSize = "Large";
-						le = hx;
-					} else {
-						Section section = new Section(Section.TYPE_SUBSUBSECTION);
-						le = section;
+				});
+			}
+		});
+		registerHandler("table", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				if (f.insideTable == true)
+					throw new IllegalArgumentException("It seems there is table inside a table. Not supported.");
+				//f.insideTable = true;   // TODO test with list inside table
+				Table table = new Table();
+				table.preamble = "|";
+				boolean firstRow = true;
+				result.add(table);
+				Elements trElements = element.select("tr");
+				for (Element trElement : trElements) {
+					Tr tr = new Tr();
+					table.rows.add(tr);
+					// Try TH elements.
+					String dataTag = "th";
+					if (trElement.select(dataTag).size() == 0)
+						dataTag = "td";
+					//
+					Elements tdElements = trElement.select(dataTag);
+					for (Element tdElement : tdElements) {
+						Td td = new Td();
+						tr.columns.add(td);
+						if (firstRow)
+							table.preamble = table.preamble + "X[-1]|";
+						f.formatNodes(tdElement.childNodes(), td.elements);
 					}
-					result.add(le);
-					formatNodes(element.childNodes(), le.elements);
-				} else if (element.nodeName().equals("h5")) {
-					LatexElements le = null;
-					if (insideTable) {
-						Hx hx = new Hx();
-						hx.fontSize = "large";
-						le = hx;
-					} else {
-						Section section = new Section(Section.TYPE_PARAGRAPH);
-						le = section;
+					firstRow = false;
+				}
+				f.insideTable = false;
+			}
+		});
+		registerHandler("ac:link", new ElementHandler() {
+			@Override
+			public void format(final Formatter f, Element element, List<LatexElement> result) {
+				// This can result in an internal link when a label exists at rendering time.
+				// Otherwise it will be typeset as an external link.
+				// Do not include navigation link.
+				if (element.text().equals("Previous") || element.text().equals("Next"))
+					return;
+				// Get anchor, page and space.
+				String anchor = element.attr("ac:anchor");
+				String pageTitle = null;
+				String space = null;
+				Element riPage = element.select("ri|page").first();
+				Element linkBody = element.select("ac|link-body").first();
+				if (riPage == null) {
+					// Only an anchor, the page is the current one.
+					pageTitle = f.pagesStack.peek().title;
+				} else {
+					pageTitle = riPage.attr("ri:content-title");
+					space = riPage.attr("ri:space-key");
+					if (space.startsWith(SPACE_PREFIX)) {
+						// There are link that wrongly point to space other then MPSD33, usually this is an error.
+						LOGGER.error("Page {} contains link '{}' to specific space {}. Space will be ignored."
+								, f.pagesStack.peek().title, pageTitle, space);
+						space = "";
 					}
-					result.add(le);
-					formatNodes(element.childNodes(), le.elements);
-				} else if (element.nodeName().equals("h6")) {
-					Bold b = new Bold();
-					result.add(b);
-					formatNodes(element.childNodes(), b.elements);
-				} else if (element.nodeName().equals("em")) {
-					Emph e = new Emph();
-					result.add(e);
-					formatNodes(element.childNodes(), e.elements);
-				} else if (element.nodeName().equals("code")) {
-					TextTT tt = new TextTT();
-					result.add(tt);
-					formatNodes(element.childNodes(), tt.elements);
-				} else if (element.nodeName().equals("s")) {
-					St st = new St();
-					result.add(st);
-					formatNodes(element.childNodes(), st.elements);
-				} else if (element.nodeName().equals("u")) {   // Underline.
-					TextUnderline underline = new TextUnderline();
-					result.add(underline);
-					formatNodes(element.childNodes(), underline.elements);
-				} else if (element.nodeName().equals("strong")) {
-					Bold b = new Bold();
-					result.add(b);
-					formatNodes(element.childNodes(), b.elements);
-				} else if (element.nodeName().equals("a")) {
-					String href = node.attr("href");
+				}
+				// If there is a space we should emit an Href.
+				LatexElements latexElement = null;
+				if (space != null && space.length() > 0) {
 					Href h = new Href();
-					h.setUrl(href);
+					h.setUrl(f.latexDocument.baseUrl + "/" + space + "/" + pageTitle.replace(' ', '+'));
 					result.add(h);
-					formatNodes(element.childNodes(), h.elements);
-				} else if (element.nodeName().equals("ol")) {
-					if (insideTable) {
-						if (insideList)
-							throw new IllegalArgumentException("It seems there is a list inside a list inside a table. Not supported.");
-						insideList = true;
-						formatNodes(element.childNodes(), result);
-						insideList = false;
-						continue;
-					}
-					Ol o = new Ol();
-					result.add(o);
-					formatNodes(element.childNodes(), o.elements);
-				} else if (element.nodeName().equals("ul")) {
-					if (insideTable) {
-						if (insideList)
-							throw new IllegalArgumentException("It seems there is a list inside a list inside a table. Not supported.");
-						insideList = true;
-						formatNodes(element.childNodes(), result);
-						insideList = false;
-						continue;
-					}
-					Ul l = new Ul();
-					result.add(l);
-					formatNodes(element.childNodes(), l.elements);
-				} else if (node.nodeName().equals("li")) {
-					Li i = new Li();
-					if (insideTable)
-						i.useTabItem = true;
-					result.add(i);
-					formatNodes(node.childNodes(), i.elements);
-				} else if (element.nodeName().equals("div")) {
-					// Divs are typeset as in-line content, as the div did not exist.
-					// TODO: once latex elements are subdivided in horizontal and vertical, this can
-					// probably be improved by closing the current vertical content and opening a new vertical one.
-					formatNodes(element.childNodes(), result);
-				} else if (node.nodeName().equals("br")) {
-					result.add(new Newline());
-				} else if ((node.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
-						&& node.attr("ac:name").equals("toc")) {
-					LOGGER.info("Page TOC omitted: {}", pagesStack.peek().title);
-					continue;
-				} else if (element.nodeName().equals("ac:structured-macro") && node.attr("ac:name").equals("toc-zone")) {
-					LOGGER.info("Page TOC-ZONE omitted: {}", pagesStack.peek().title);
-					Elements params = element.select("ac|parameter").select("[ac:name=includePages]");
-					if (params.size() == 0)
-						continue;
-					if (params.get(0).text().equals("true")) {
-						Element richtext = element.select("ac|rich-text-body").first();
-						formatNodes(richtext.childNodes(), result);
-					}
-				} else if ((element.nodeName().equals("ac:structured-macro") || node.nodeName().equals("ac:macro"))
-						&& element.attr("ac:name").equals("anchor")) {
-					String anchor = element.text();
-					String pageTitle = pagesStack.peek().title;
-					String labelString = Label.getLabelString(pageTitle, anchor);
-					Label label = labels.get(labelString);
-					if (label != null) {
-						// Found.
-						if (label.defined) {
-							// Label created by anchor definition.
-							LOGGER.error("Label '{}' already defined, page is {}", labelString, pagesStack.peek().title);
-						} else {
-							// Label created by a link definition, define and add at this document point.
-							label.defined = true;
-							result.add(label);
-						}
-					} else {
-						label = new Label(pageTitle, anchor);
-						label.defined = true;
-						labels.put(label.getLabelString(), label);
-						result.add(label);
-					}
-				} else if (node.nodeName().equals("table")) {
-					if (insideTable == true)
-						throw new IllegalArgumentException("It seems there is table inside a table. Not supported.");
-					//insideTable = true;   // TODO test with list inside table
-					Table table = new Table();
-					table.preamble = "|";
-					boolean firstRow = true;
-					result.add(table);
-					Elements trElements = element.select("tr");
-					for (Element trElement : trElements) {
-						Tr tr = new Tr();
-						table.rows.add(tr);
-						// Try TH elements.
-						String dataTag = "th";
-						if (trElement.select(dataTag).size() == 0)
-							dataTag = "td";
-						//
-						Elements tdElements = trElement.select(dataTag);
-						for (Element tdElement : tdElements) {
-							Td td = new Td();
-							tr.columns.add(td);
-							if (firstRow)
-								table.preamble = table.preamble + "X[-1]|";
-							formatNodes(tdElement.childNodes(), td.elements);
+					latexElement = h;
+				} else {
+					// No space, add a Link that will be typeset either as hyperref or as href.
+					final Link link = new Link(null);
+					final String linkedTitle = pageTitle;
+					final String linkAnchor = anchor;
+					final String currentTitle = f.pagesStack.peek().title;
+					f.shared(new Runnable() {
+						@Override
+						public void run() {
+							link.label = f.getLinkLabel(currentTitle, linkedTitle, linkAnchor);
 						}
-						firstRow = false;
-					}
-					insideTable = false;
-				} else if (element.nodeName().equals("ac:link")) {
-					// This can result in an internal link when a label exists at rendering time.
-					// Otherwise it will be typeset as an external link.
-					// Do not include navigation link.
-					if (element.text().equals("Previous") || element.text().equals("Next"))
-						continue;
-					// Get anchor, page and space.
-					String anchor = element.attr("ac:anchor");
-					String pageTitle = null;
-					String space = null;
+					});
+					result.add(link);
+					latexElement = link;
+				}
+				// Link content.
+				if (linkBody != null) {
+					f.formatNodes(linkBody.childNodes(), latexElement.elements);
+				} else {
+					latexElement.elements.add(new TextElement(pageTitle));
+				}
+			}
+		});
+		registerHandler("hr", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				result.add(new Hrule());
+			}
+		});
+		registerMacroHandler("code", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Element body = element.select("ac|plain-text-body").first();
+				TextNode textNode = (TextNode)body.childNodes().get(0);
+				VerbatimDef v = new VerbatimDef();
+				v.setContent(textNode.getWholeText());
+				result.add(f.addVerbatimDef(v));
+			}
+		});
+		registerHandler("ac:structured-macro", "info", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Info info = new Info();
+				result.add(info);
+				f.formatNodes(element.childNodes(), info.elements);
+			}
+		});
+		registerHandler("ac:macro", "info", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Info info = new Info();
+				result.add(info);
+				f.formatNodes(element.childNodes(), info.elements);
+			}
+		});
+		registerHandler("ac:rich-text-body", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				// Include content.
+				f.formatNodes(element.childNodes(), result);
+			}
+		});
+		registerMacroHandler("include", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				String includedTitle = null;
+				if (element.nodeName().equals("ac:structured-macro")) {
 					Element riPage = element.select("ri|page").first();
-					Element linkBody = element.select("ac|link-body").first();
 					if (riPage == null) {
-						// Only an anchor, the page is the current one.
-						pageTitle = pagesStack.peek().title;
-					} else {
-						pageTitle = riPage.attr("ri:content-title");
-						space = riPage.attr("ri:space-key");
-						if (space.startsWith(SPACE_PREFIX)) {
-							// There are link that wrongly point to space other then MPSD33, usually this is an error.
-							LOGGER.error("Page {} contains link '{}' to specific space {}. Space will be ignored."
-									, pagesStack.peek().title, pageTitle, space);
-							space = "";
-						}
+						LOGGER.error("ac:structured-macro 'include' does not have ri:page: {}", element.outerHtml());
+						return;
 					}
-					// If there is a space we should emit an Href.
-					LatexElements latexElement = null;
-					if (space != null && space.length() > 0) {
-						Href h = new Href();
-						h.setUrl(latexDocument.baseUrl + "/" + space + "/" + pageTitle.replace(' ', '+'));
-						result.add(h);
-						latexElement = h;
-					} else {
-						// No space, add a Link that will be typeset either as hyperref or as href.
-						String labelString = null;
-						if (anchor.length() == 0) {   // Link to chapter.
-							// Chapter.
-							Chapter chapter = latexDocument.getChapter(pageTitle, createMissingChapters);
-							if (chapter != null) {
-								if (chapter.inline)
-									labelString = "inline-chapter-" + chapter.title;
-								else
-									labelString = "chapter." + chapter.number;
-							} else {
-								labelString = Label.getLabelString(pageTitle, null);
-								// There are links that seem to be errors, for instance link to "search scope" page, see the Constraints page.
-								if (pages.get(pageTitle) == null)
-									LOGGER.error("Page '{}' has a link to a page '{}' that does not exists into the download dir."
-											, pagesStack.peek().title, pageTitle);
-							}
-						} else {
-							labelString = Label.getLabelString(pageTitle, anchor);
-							if (pages.get(pageTitle) == null)
-								LOGGER.error("Page '{}' has a link/anchor '{}#{}' to a page that does not exists into the download dir."
-										, pagesStack.peek().title, pageTitle, anchor);
-						}
-						Label l = labels.get(labelString);
-						if (l == null) {  // Create a Label with defined = false.
-							l = new Label(anchor.length() == 0 ? labelString : pageTitle, anchor);
-							labels.put(l.getLabelString(), l);
-							// Chapter label are always defined.
-							if (labelString.startsWith("chapter.") || labelString.startsWith("inline-chapter-"))
-								l.defined = true;
-						}
-						l.referenced = true;
-						Link link = new Link(l);
-						result.add(link);
-						latexElement = link;
-					}
-					// Link content.
-					if (linkBody != null) {
-						formatNodes(linkBody.childNodes(), latexElement.elements);
-					} else {
-						latexElement.elements.add(new TextElement(pageTitle));
+					includedTitle = riPage.attr("ri:content-title");
+				} else {   // ac:macro.
+					Element defaultParameter = element.select("ac|default-parameter").first();
+					if (defaultParameter == null) {
+						LOGGER.error("ac:macro 'include' does not have ac:default-parameter: {}", element.outerHtml());
+						return;
 					}
-				} else if (node.nodeName().equals("hr")) {
-					result.add(new Hrule());
-				} else if ((node.nodeName().equals("ac:macro") || node.nodeName().equals("ac:structured-macro"))
-						&& node.attr("ac:name").equals("code")) {
-					Element body = ((Element) node).select("ac|plain-text-body").first();
-					TextNode textNode = (TextNode)body.childNodes().get(0);
-					VerbatimDef v = new VerbatimDef();
-					v.setContent(textNode.getWholeText());
-					latexDocument.verbatimDefs.addVerbatimDef(v);
-					VerbatimUse verbatimUse = new VerbatimUse();
-					verbatimUse.key = v.key;
-					result.add(verbatimUse);
-				} else if (node.nodeName().equals("ac:structured-macro") && node.attr("ac:name").equals("info")) {
-					Info info = new Info();
-					result.add(info);
-					formatNodes(node.childNodes(), info.elements);
-				} else if (node.nodeName().equals("ac:macro") && node.attr("ac:name").equals("info")) {
-					Info info = new Info();
-					result.add(info);
-					formatNodes(element.childNodes(), info.elements);
-				} else if (node.nodeName().equals("ac:rich-text-body")) {
-					// Include content.
-					formatNodes(element.childNodes(), result);
-				} else if ((node.nodeName().equals("ac:structured-macro") || node.nodeName().equals("ac:macro"))
-						&& node.attr("ac:name").equals("include")) {
-					String includedTitle = null;
-					if (node.nodeName().equals("ac:structured-macro")) {
-						Element riPage = element.select("ri|page").first();
-						if (riPage == null) {
-							LOGGER.error("ac:structured-macro 'include' does not have ri:page: {}", element.outerHtml());
-							continue;
-						}
-						includedTitle = riPage.attr("ri:content-title");
-					} else {   // ac:macro.
-						Element defaultParameter = element.select("ac|default-parameter").first();
-						if (defaultParameter == null) {
-							LOGGER.error("ac:macro 'include' does not have ac:default-parameter: {}", element.outerHtml());
-							continue;
+					includedTitle = defaultParameter.text();
+				}
+				if (includedTitle == null) {
+					LOGGER.error("ri:page to include does not have content-title: {}", element.outerHtml());
+					return;
+				}
+				WikiPage pageToInclude = f.pages.get(includedTitle);
+				if (pageToInclude == null) {
+					LOGGER.error("Page to include not found: {}", includedTitle);
+					return;
+				}
+				if (pageToInclude.isExcluded) {
+					LOGGER.info("Page excluded as requested: {}", includedTitle);
+					return;
+				}
+				f.included(pageToInclude, "About to include a page already included: {}");
+				f.pagesStack.push(pageToInclude);
+				LOGGER.info("Include page: {}", includedTitle);
+				f.formatPage(f.pagesStack.peek(), result);
+				f.pagesStack.pop();
+			}
+		});
+		registerHandler("ac:structured-macro", "section", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				// Format only first column.
+				Element richtext = element.select("ac|rich-text-body").first()
+						.select("ac|structured-macro").first().select("ac|rich-text-body").first();
+				f.formatNodes(richtext.childNodes(), result);
+			}
+		});
+		registerHandler("ac:image", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				// TODO: do not use ac:image string to retrieve images, some image is included with more than one width.
+				String acImage = element.outerHtml();
+				WikiImage image = f.pagesStack.peek().getImages().get(acImage);
+				if (image == null) {
+					// Some images are included with different width, try to search only ri:attachment.
+					String riAttachment = element.select("ri|attachment").first().outerHtml();
+					for (String imageKey : f.pagesStack.peek().getImages().keySet()) {
+						if (imageKey.indexOf(riAttachment) != -1) {
+							image = f.pagesStack.peek().getImages().get(imageKey);
+							break;
 						}
-						includedTitle = defaultParameter.text();
-					}
-					if (includedTitle == null) {
-						LOGGER.error("ri:page to include does not have content-title: {}", element.outerHtml());
-						continue;
 					}
-					WikiPage pageToInclude = pages.get(includedTitle);
-					if (pageToInclude == null) {
-						LOGGER.error("Page to include not found: {}", includedTitle);
-						continue;
-					}
-					if (pageToInclude.isExcluded) {
-						LOGGER.info("Page excluded as requested: {}", includedTitle);
-						continue;
-					}
-					if (pageToInclude.alreadyIncluded) {
-						LOGGER.warn("About to include a page already included: {}", pageToInclude.title);
-					}
-					pageToInclude.alreadyIncluded = true;
-					pagesStack.push(pageToInclude);
-					LOGGER.info("Include page: {}", includedTitle);
-					formatNodes(pagesStack.peek().pageContent.childNodes(), result);
-					pagesStack.pop();
-				} else if (node.nodeName().equals("ac:structured-macro") && node.attr("ac:name").equals("section")) {
-					// Format only first column.
-					Element richtext = ((Element) node).select("ac|rich-text-body").first()
-							.select("ac|structured-macro").first().select("ac|rich-text-body").first();
-					formatNodes(richtext.childNodes(), result);
-				} else if (node.nodeName().equals("ac:image")) {
-					// TODO: do not use ac:image string to retrieve images, some image is included with more than one width.
-					String acImage = element.outerHtml();
-					WikiImage image = pagesStack.peek().images.get(acImage);
+					// Still not found?
 					if (image == null) {
-						// Some images are included with different width, try to search only ri:attachment.
-						String riAttachment = element.select("ri|attachment").first().outerHtml();
-						for (String imageKey : pagesStack.peek().images.keySet()) {
-							if (imageKey.indexOf(riAttachment) != -1) {
-								image = pagesStack.peek().images.get(imageKey);
-								break;
-							}
-						}
-						// Still not found?
-						if (image == null) {
-							//throw new IllegalArgumentException("ac:image not found in page images: " + element.outerHtml());
-							LOGGER.error("ac:image not found in page images: {}", element.outerHtml());
-							continue;
-						}
-					}
-					result.add(new Image(downloadDir.getAbsolutePath() + "/" + image.filename));
-				} else if (node.nodeName().equals("span")) {
-					List<LatexElement> container = result;
-					String style = element.attr("style");
-					if (style != null) {
-						InputSource source = new InputSource(new StringReader(style));
-						CSSOMParser parser = new CSSOMParser();
-						try {
-							CSSStyleDeclaration sd = parser.parseStyleDeclaration(source);
-							for (int p = 0; p < sd.getLength(); p++) {
-								String propertyName = sd.item(p);
-								CSSValue value = sd.getPropertyCSSValue(propertyName);
-								short valueType = value.getCssValueType();
-								//boolean isPrimitive = valueType == CSSValue.CSS_PRIMITIVE_VALUE;
-								if (propertyName.equals("color")) {
-									CSSPrimitiveValue primitive = (CSSPrimitiveValue)value;
-									short primitiveType = primitive.getPrimitiveType();
-									if (primitiveType == CSSPrimitiveValue.CSS_RGBCOLOR) {
-										RGBColor rgbColor = primitive.getRGBColorValue();
-										Color c = new Color();
-										result.add(c);
-										c.r = rgbColor.getRed().toString();
-										c.g = rgbColor.getGreen().toString();
-										c.b = rgbColor.getBlue().toString();
-										container = c.elements;
-									} else {
-										LOGGER.warn("CSSPrimitiveValue not supported: {}", value.toString());
-									}
-								} else if (propertyName.equals("text-decoration")) {
-									CSSPrimitiveValue primitive = (CSSPrimitiveValue)value;
-									short primitiveType = primitive.getPrimitiveType();
-									if (primitiveType == CSSPrimitiveValue.CSS_IDENT) {
-										String decoration = primitive.getStringValue();
-										if (decoration.equals("line-through")) {
-											St st = new St();
-											result.add(st);
-											container = st.elements;
-										} else if (decoration.equals("underline")) {
-											TextUnderline underline = new TextUnderline();
-											result.add(underline);
-											container = underline.elements;
-										} else {
-											LOGGER.info("Text decoration not supported: {}", decoration);
-										}
-									} else {
-										LOGGER.info("CSSPrimitiveValue not supported: {}", value.toString());
-									}
-								} else {
-									LOGGER.info("CSS property not supported: {}", propertyName);
-								}
-							}
-						} catch (IOException e) {
-							e.printStackTrace();
-							LOGGER.error("Error parsing CSS style: {}", style);
-						}
-					}
-					// Format content in line.
-					formatNodes(element.childNodes(), container);
-				} else if (node.nodeName().equals("blockquote")) {
-					Blockquote b = new Blockquote();
-					result.add(b);
-					formatNodes(element.childNodes(), b.elements);
-				} else if ((node.nodeName().equals("ac:macro") || node.nodeName().equals("ac:structured-macro"))
-						&& node.attr("ac:name").equals("noformat")) {
-					Element plainText = element.select("ac|plain-text-body").first();
-					TextNode textNode = (TextNode)plainText.childNodes().get(0);
-					VerbatimDef v = new VerbatimDef();
-					v.setContent(textNode.getWholeText());
-					latexDocument.verbatimDefs.addVerbatimDef(v);
-					VerbatimUse verbatimUse = new VerbatimUse();
-					verbatimUse.key = v.key;
-					result.add(verbatimUse);
-				} else if ((node.nodeName().equals("ac:macro") || node.nodeName().equals("ac:structured-macro"))
-						&& node.attr("ac:name").equals("tip")) {
-					Tip tip = new Tip();
-					result.add(tip);
-					Element richText = element.select("ac|rich-text-body").first();
-					formatNodes(richText.childNodes(), tip.elements);
-				} else if ((element.nodeName().equals("ac:structured-macro") || element.nodeName().equals("ac:macro"))
-						&& node.attr("ac:name").equals("warning")) {
-					Warning warn = new Warning();
-					result.add(warn);
-					Element richText = element.select("ac|rich-text-body").first();
-					List<Node> warnNodes = null;
-					if (richText != null) {
-						warnNodes = richText.childNodes();
-					} else {
-						warnNodes = element.childNodes();
-					}
-					formatNodes(warnNodes, warn.elements);
-				} else if (element.nodeName().equals("ac:parameter") && node.attr("ac:name").equals("title")) {
-					Hx h5 = new Hx();
-					h5.fontSize = "large";
-					result.add(h5);
-					formatNodes(element.childNodes(), h5.elements);
-					result.add(new Newline());
-				} else if (element.nodeName().equals("sub")) {
-					Sub sub = new Sub();
-					result.add(sub);
-					formatNodes(element.childNodes(), sub.elements);
-				} else if (element.nodeName().equals("sup")) {
-					Sup sup = new Sup();
-					result.add(sup);
-					formatNodes(element.childNodes(), sup.elements);
-				} else if (element.nodeName().equals("pre")) {
-					StringBuffer buffer = new StringBuffer();
-					formatPre(element.childNodes(), buffer);
-					VerbatimDef v = new VerbatimDef();
-					v.setContent(buffer.toString());
-					latexDocument.verbatimDefs.addVerbatimDef(v);
-					VerbatimUse verbatimUse = new VerbatimUse();
-					verbatimUse.key = v.key;
-					result.add(verbatimUse);
-				} else if (element.nodeName().equals("ac:emoticon")) {
-					String name = element.attr("ac:name");
-					if (name.equals("light-on")) {
-						result.add(new Emoticon(Emoticon.LIGHT_ON));
-					} else if (name.equals("warning")) {
-						result.add(new Emoticon(Emoticon.WARNING));
-					} else if (name.equals("information")) {
-						result.add(new Emoticon(Emoticon.INFORMATION));
-					} else if (name.equals("tick")) {
-						result.add(new Emoticon(Emoticon.TIP));
-					} else if (name.equals("smile")) {
-						result.add(new Emoticon(Emoticon.SMILE));
-					} else {
-						LOGGER.warn("Emoticon not supported: {}", name);
+						//throw new IllegalArgumentException("ac:image not found in page images: " + element.outerHtml());
+						LOGGER.error("ac:image not found in page images: {}", element.outerHtml());
+						return;
 					}
-				} else if ((element.nodeName().equals("ac:macro") || element.nodeName().equals("ac:structured-macro"))
-						&& node.attr("ac:name").equals("note")) {
-					Info info = new Info();
-					result.add(info);
-					formatNodes(node.childNodes(), info.elements);
-				} else if (element.nodeName().equals("ac:macro") && node.attr("ac:name").equals("toc-zone")) {
-					Element richTextBody = element.select("ac|rich-text-body").first();
-					if (richTextBody == null) {
-						LOGGER.error("Macro 'toc-zone' without 'rich-text-body' element.");
-						continue;
-					}
-					// Format in line.
-					formatNodes(richTextBody.childNodes(), result);
-				} else if ((node.nodeName().equals("ac:macro") || node.nodeName().equals("ac:structured-macro")) && node.attr("ac:name").equals("unmigrated-wiki-markup")) {
-					result.add(new TextElement("Old wiki markup is not supported, page content has been ignored."));
-					LOGGER.warn("Page '{}' contains old wiki markup, page content will be ignored.", pagesStack.peek().title);
-				} else if (element.nodeName().equals("ac:default-parameter")) {
-					// I think this should be ignored, do nothing.
-					continue;
+				}
+				result.add(new Image(f.downloadDir.getAbsolutePath() + "/" + image.filename));
+			}
+		});
+		registerHandler("span", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				List<LatexElement> container = result;
+				String style = element.attr("style");
+				if (style != null) {
+					container = SpanStyle.get(style).apply(result);
+				}
+				// Format content in line.
+				f.formatNodes(element.childNodes(), container);
+			}
+		});
+		registerHandler("blockquote", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Blockquote b = new Blockquote();
+				result.add(b);
+				f.formatNodes(element.childNodes(), b.elements);
+			}
+		});
+		registerMacroHandler("noformat", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Element plainText = element.select("ac|plain-text-body").first();
+				TextNode textNode = (TextNode)plainText.childNodes().get(0);
+				VerbatimDef v = new VerbatimDef();
+				v.setContent(textNode.getWholeText());
+				result.add(f.addVerbatimDef(v));
+			}
+		});
+		registerMacroHandler("tip", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Tip tip = new Tip();
+				result.add(tip);
+				Element richText = element.select("ac|rich-text-body").first();
+				f.formatNodes(richText.childNodes(), tip.elements);
+			}
+		});
+		registerMacroHandler("warning", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Warning warn = new Warning();
+				result.add(warn);
+				Element richText = element.select("ac|rich-text-body").first();
+				List<Node> warnNodes = null;
+				if (richText != null) {
+					warnNodes = richText.childNodes();
+				} else {
+					warnNodes = element.childNodes();
+				}
+				f.formatNodes(warnNodes, warn.elements);
+			}
+		});
+		registerHandler("ac:parameter", "title", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Hx h5 = new Hx();
+				h5.fontSize = "large";
+				result.add(h5);
+				f.formatNodes(element.childNodes(), h5.elements);
+				result.add(new Newline());
+			}
+		});
+		registerHandler("sub", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Sub sub = new Sub();
+				result.add(sub);
+				f.formatNodes(element.childNodes(), sub.elements);
+			}
+		});
+		registerHandler("sup", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Sup sup = new Sup();
+				result.add(sup);
+				f.formatNodes(element.childNodes(), sup.elements);
+			}
+		});
+		registerHandler("pre", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				StringBuffer buffer = new StringBuffer();
+				f.formatPre(element.childNodes(), buffer);
+				VerbatimDef v = new VerbatimDef();
+				v.setContent(buffer.toString());
+				result.add(f.addVerbatimDef(v));
+			}
+		});
+		registerHandler("ac:emoticon", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				String name = element.attr("ac:name");
+				if (name.equals("light-on")) {
+					result.add(new Emoticon(Emoticon.LIGHT_ON));
+				} else if (name.equals("warning")) {
+					result.add(new Emoticon(Emoticon.WARNING));
+				} else if (name.equals("information")) {
+					result.add(new Emoticon(Emoticon.INFORMATION));
+				} else if (name.equals("tick")) {
+					result.add(new Emoticon(Emoticon.TIP));
+				} else if (name.equals("smile")) {
+					result.add(new Emoticon(Emoticon.SMILE));
 				} else {
-					throw new IllegalArgumentException("Element " + element.nodeName() + " not supported.");
+					LOGGER.warn("Emoticon not supported: {}", name);
+				}
+			}
+		});
+		registerMacroHandler("note", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Info info = new Info();
+				result.add(info);
+				f.formatNodes(element.childNodes(), info.elements);
+			}
+		});
+		registerHandler("ac:macro", "toc-zone", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				Element richTextBody = element.select("ac|rich-text-body").first();
+				if (richTextBody == null) {
+					LOGGER.error("Macro 'toc-zone' without 'rich-text-body' element.");
+					return;
 				}
+				// Format in line.
+				f.formatNodes(richTextBody.childNodes(), result);
+			}
+		});
+		registerMacroHandler("unmigrated-wiki-markup", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				result.add(new TextElement("Old wiki markup is not supported, page content has been ignored."));
+				LOGGER.warn("Page '{}' contains old wiki markup, page content will be ignored.", f.pagesStack.peek().title);
+			}
+		});
+		registerHandler("ac:default-parameter", new ElementHandler() {
+			@Override
+			public void format(Formatter f, Element element, List<LatexElement> result) {
+				// I think this should be ignored, do nothing.
+			}
+		});
+	}
+	
+	/**
+	 * Return the label of a link to a page or to an anchor, created if missing.
+	 */
+	private Label getLinkLabel(String currentTitle, String pageTitle, String anchor) {
+		String labelString = null;
+		if (anchor.length() == 0) {   // Link to chapter.
+			// Chapter.
+			Chapter chapter = latexDocument.getChapter(pageTitle, createMissingChapters);
+			if (chapter != null) {
+				if (chapter.inline)
+					labelString = "inline-chapter-" + chapter.title;
+				else
+					labelString = "chapter." + chapter.number;
 			} else {
-				throw new IllegalArgumentException("Node " + node.nodeName() + " not supported.");
+				labelString = Label.getLabelString(pageTitle, null);
+				// There are links that seem to be errors, for instance link to "search scope" page, see the Constraints page.
+				if (pages.get(pageTitle) == null)
+					LOGGER.error("Page '{}' has a link to a page '{}' that does not exists into the download dir."
+							, currentTitle, pageTitle);
 			}
+		} else {
+			labelString = Label.getLabelString(pageTitle, anchor);
+			if (pages.get(pageTitle) == null)
+				LOGGER.error("Page '{}' has a link/anchor '{}#{}' to a page that does not exists into the download dir."
+						, currentTitle, pageTitle, anchor);
+		}
+		Label l = labels.get(labelString);
+		if (l == null) {  // Create a Label with defined = false.
+			l = new Label(anchor.length() == 0 ? labelString : pageTitle, anchor);
+			labels.put(l.getLabelString(), l);
+			// Chapter label are always defined.
+			if (labelString.startsWith("chapter.") || labelString.startsWith("inline-chapter-"))
+				l.defined = true;
 		}
+		l.referenced = true;
+		return l;
 	}
-	
+
+	/**
+	 * Return the use of a verbatim definition, its key is assigned when added to the document.
+	 */
+	private VerbatimUse addVerbatimDef(final VerbatimDef def) {
+		final VerbatimUse use = new VerbatimUse();
+		shared(new Runnable() {
+			@Override
+			public void run() {
+				latexDocument.verbatimDefs.addVerbatimDef(def);
+				use.key = def.key;
+			}
+		});
+		return use;
+	}
+
+	/**
+	 * Replace a pending element with element, or remove it if element is null.
+	 */
+	private static void replace(List<LatexElement> elements, LatexElement pending, LatexElement element) {
+		for (int e = 0; e < elements.size(); e++) {
+			if (elements.get(e) == pending) {
+				if (element != null)
+					elements.set(e, element);
+				else
+					elements.remove(e);
+				return;
+			}
+		}
+	}
+
 	private void formatPre(List<Node> childNodes, StringBuffer buffer) {
 		for (Node node : childNodes) {
 			if (node instanceof TextNode) {
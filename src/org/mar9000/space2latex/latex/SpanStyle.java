@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.latex;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.slf4j.Logger;
+import org.w3c.css.sac.InputSource;
+import org.w3c.dom.css.CSSPrimitiveValue;
+import org.w3c.dom.css.CSSStyleDeclaration;
+import org.w3c.dom.css.CSSValue;
+import org.w3c.dom.css.RGBColor;
+
+import com.steadystate.css.parser.CSSOMParser;
+
+/**
+ * The decorations (color, strike, underline) of the style attribute of a span. Pages repeat
+ * the same few styles, each distinct style is parsed once and kept into a bounded cache,
+ * the least recently used style is dropped first. Properties and values not supported
+ * are logged when the style is parsed.
+ */
+public class SpanStyle {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(SpanStyle.class);
+
+	private static final int CACHE_SIZE = 256;
+	private static final int COLOR = 0;
+	private static final int STRIKE = 1;
+	private static final int UNDERLINE = 2;
+
+	private static Map<String, SpanStyle> cache = new LinkedHashMap<String, SpanStyle>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SpanStyle> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	private static long hits = 0;
+	private static long misses = 0;
+
+	private static class Decoration {
+		int type = COLOR;
+		String r = null;
+		String g = null;
+		String b = null;
+	}
+
+	private List<Decoration> decorations = new ArrayList<Decoration>();
+
+	/**
+	 * The decorations of a style, parsed only if not cached.
+	 */
+	public static SpanStyle get(String style) {
+		synchronized (cache) {
+			SpanStyle spanStyle = cache.get(style);
+			if (spanStyle != null) {
+				hits++;
+				return spanStyle;
+			}
+			misses++;
+		}
+		// Parsed again if another thread is parsing the same style, same result.
+		SpanStyle spanStyle = parse(style);
+		synchronized (cache) {
+			cache.put(style, spanStyle);
+		}
+		return spanStyle;
+	}
+
+	private static SpanStyle parse(String style) {
+		SpanStyle spanStyle = new SpanStyle();
+		InputSource source = new InputSource(new StringReader(style));
+		CSSOMParser parser = new CSSOMParser();
+		try {
+			CSSStyleDeclaration sd = parser.parseStyleDeclaration(source);
+			for (int p = 0; p < sd.getLength(); p++) {
+				String propertyName = sd.item(p);
+				CSSValue value = sd.getPropertyCSSValue(propertyName);
+				if (propertyName.equals("color")) {
+					CSSPrimitiveValue primitive = (CSSPrimitiveValue)value;
+					short primitiveType = primitive.getPrimitiveType();
+					if (primitiveType == CSSPrimitiveValue.CSS_RGBCOLOR) {
+						RGBColor rgbColor = primitive.getRGBColorValue();
+						Decoration color = new Decoration();
+						color.type = COLOR;
+						color.r = rgbColor.getRed().toString();
+						color.g = rgbColor.getGreen().toString();
+						color.b = rgbColor.getBlue().toString();
+						spanStyle.decorations.add(color);
+					} else {
+						LOGGER.warn("CSSPrimitiveValue not supported: {}", value.toString());
+					}
+				} else if (propertyName.equals("text-decoration")) {
+					CSSPrimitiveValue primitive = (CSSPrimitiveValue)value;
+					short primitiveType = primitive.getPrimitiveType();
+					if (primitiveType == CSSPrimitiveValue.CSS_IDENT) {
+						String decoration = primitive.getStringValue();
+						if (decoration.equals("line-through")) {
+							Decoration strike = new Decoration();
+							strike.type = STRIKE;
+							spanStyle.decorations.add(strike);
+						} else if (decoration.equals("underline")) {
+							Decoration underline = new Decoration();
+							underline.type = UNDERLINE;
+							spanStyle.decorations.add(underline);
+						} else {
+							LOGGER.info("Text decoration not supported: {}", decoration);
+						}
+					} else {
+						LOGGER.info("CSSPrimitiveValue not supported: {}", value.toString());
+					}
+				} else {
+					LOGGER.info("CSS property not supported: {}", propertyName);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			LOGGER.error("Error parsing CSS style: {}", style);
+		}
+		return spanStyle;
+	}
+
+	/**
+	 * Add to result an element for each decoration, return the elements of the last one,
+	 * where the content of the span goes, result if there is no decoration.
+	 */
+	public List<LatexElement> apply(List<LatexElement> result) {
+		List<LatexElement> container = result;
+		for (Decoration decoration : decorations) {
+			LatexElements element = null;
+			if (decoration.type == COLOR) {
+				Color c = new Color();
+				c.r = decoration.r;
+				c.g = decoration.g;
+				c.b = decoration.b;
+				element = c;
+			} else if (decoration.type == STRIKE) {
+				element = new St();
+			} else {
+				element = new TextUnderline();
+			}
+			result.add(element);
+			container = element.elements;
+		}
+		return container;
+	}
+
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Styles found into the cache, in percent of the styles requested, 0 if none.
+	 */
+	public static double getHitRatio() {
+		synchronized (cache) {
+			return hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses);
+		}
+	}
+
+	public static long getRequests() {
+		synchronized (cache) {
+			return hits + misses;
+		}
+	}
+
+}
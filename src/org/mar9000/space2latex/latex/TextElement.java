@@ -16,6 +16,9 @@
  */
 package org.mar9000.space2latex.latex;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class TextElement implements LatexElement {
 	
 	public String text = null;
@@ -24,51 +27,64 @@ public class TextElement implements LatexElement {
 		this.text = identifyLongPackage(escapeString(text));
 	}
 	
+	// Escape of each ASCII character, null if written as is.
+	private static final String[] ASCII_ESCAPES = new String[128];
+	static {
+		ASCII_ESCAPES['{'] = "\\{";
+		ASCII_ESCAPES['}'] = "\\}";
+		ASCII_ESCAPES['\\'] = "\\localBackslash{}";
+		for (char c : "#$%&~_^".toCharArray()) {
+			ASCII_ESCAPES[c] = "\\" + c;
+		}
+	}
+
+	/**
+	 * Escape of a character, null if written as is.
+	 */
+	private static String escape(char c) {
+		if (c < ASCII_ESCAPES.length)
+			return ASCII_ESCAPES[c];
+		switch (c) {
+		case '\u00A0':
+			return " ";   // Replace &nbsp; with space.
+		case '\u201C':
+			return "``";
+		case '\u201D':
+			return "''";
+		case '\u2019':
+			return "'";
+		case '\u2192':   // Rightwards arrow.
+			return "$\\rightarrow$";
+		case '\u2014':   // &mdash;, an alternative is /textemdash .
+			return "---";
+		case '\u2013':      // &ndash;, an alternative is /textendash .
+			return "--";
+		case '\uFEFF':   // ZERO WIDTH NO-BREAK.
+			return "\\hspace{0pt}";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Return text itself if there is nothing to escape.
+	 */
 	public static String escapeString(String text) {
-		StringBuffer result = new StringBuffer();
-		for (int c = 0; c < text.length(); c++) {
+		int length = text.length();
+		int c = 0;
+		while (c < length && escape(text.charAt(c)) == null)
+			c++;
+		if (c == length)
+			return text;
+		StringBuilder result = new StringBuilder(length + 16);
+		result.append(text, 0, c);
+		for (; c < length; c++) {
 			char current = text.charAt(c);
-			switch (current) {
-			case '{':
-				result.append("\\{");
-				break;
-			case '}':
-				result.append("\\}");
-				break;
-			case '\\':
-				result.append("\\localBackslash{}");
-				break;
-			case '\u00A0':
-				result.append(" ");   // Replace &nbsp; with space.
-				break;
-			case '\u201C':
-				result.append("``");
-				break;
-			case '\u201D':
-				result.append("''");
-				break;
-			case '\u2019':
-				result.append("'");
-				break;
-			case '\u2192':   // Rightwards arrow.
-				result.append("$\\rightarrow$");
-				break;
-			case '\u2014':   // &mdash;, an alternative is /textemdash .
-				result.append("---");
-				break;
-			case '\u2013':      // &ndash;, an alternative is /textendash .
-				result.append("--");
-				break;
-			case '\uFEFF':   // ZERO WIDTH NO-BREAK.
-				result.append("\\hspace{0pt}");
-				break;
-			default:
-				if ("#$%&~_^".indexOf(current) != -1)
-					result.append("\\").append(current);
-				else
-					result.append(current);
-				break;
-			}
+			String escaped = escape(current);
+			if (escaped != null)
+				result.append(escaped);
+			else
+				result.append(current);
 		}
 		/*
 		// Can't use $\backslash$ or "$" will be escaped.
@@ -95,12 +111,19 @@ public class TextElement implements LatexElement {
 	public static final String JAVA_PACKAGE_TWO_DOT = JAVA_IDENTIFIER + "\\." + JAVA_IDENTIFIER + "\\." + JAVA_IDENTIFIER;
 	public static final String JAVA_PACKAGE_MORE_DOT = JAVA_PACKAGE_TWO_DOT + "(\\." + JAVA_IDENTIFIER + ")*";
 	public static final String JAVA_PACKAGE_GROUP = "(" + JAVA_PACKAGE_MORE_DOT + ")";
+	private static final Pattern JAVA_PACKAGE_PATTERN = Pattern.compile(JAVA_PACKAGE_GROUP);
 	/**
 	 * The latex template load the url package and define an url command "noclickurl", then the hyperref package is loaded.
+	 * Return text itself if there is no package name.
 	 */
 	public static String identifyLongPackage(String text) {
-		String newText = text.replaceAll(JAVA_PACKAGE_GROUP, "\\\\protect\\\\noclickurl{$1}");
-		return newText;
+		// A package name has at least two dots.
+		if (text.indexOf('.') == -1)
+			return text;
+		Matcher matcher = JAVA_PACKAGE_PATTERN.matcher(text);
+		if (!matcher.find())
+			return text;
+		return matcher.replaceAll("\\\\protect\\\\noclickurl{$1}");
 	}
 	
 }
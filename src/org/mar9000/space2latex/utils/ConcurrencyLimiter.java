@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.utils;
+
+import org.mar9000.space2latex.log.S2LLogUtils;
+import org.slf4j.Logger;
+
+/**
+ * Limit the requests sent to Confluence at the same time, the limit is adapted (AIMD) to
+ * the server health: it starts at the max limit, it grows back by one every "limit" successful
+ * requests up to the max limit and it is halved when the server answers 429 or 5xx, when a request
+ * fails with a network error or when the recent latency goes beyond twice the long run latency.
+ * The latency is the time to the response headers, the transfer of the body depends on its size
+ * and not on the server health, and it is averaged for each kind of request, REST and image,
+ * since their response times differ. The limit is halved at most once per long run latency,
+ * so many requests failing together count as one signal.
+ * Every change of the limit is logged.
+ */
+public class ConcurrencyLimiter {
+
+	private static Logger LOGGER = S2LLogUtils.getLogger(ConcurrencyLimiter.class);
+
+	public static final int REST_REQUEST = 0;
+	public static final int IMAGE_REQUEST = 1;
+
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// Weights of a new latency sample into the recent and into the long run averages.
+	private static final double RECENT_WEIGHT = 0.3;
+	private static final double LONG_RUN_WEIGHT = 0.02;
+	private static final long MIN_DECREASE_INTERVAL = 100;   // Milliseconds.
+
+	// No limit until configured.
+	private static double limit = Integer.MAX_VALUE;
+	private static int maxLimit = Integer.MAX_VALUE;
+	private static int inFlight = 0;
+	// By kind of request.
+	private static double[] recentLatency = new double[]{-1, -1};
+	private static double[] longRunLatency = new double[]{-1, -1};
+	private static long lastDecrease = 0;
+	private static long startTime = System.currentTimeMillis();
+	private static int lowestLimit = Integer.MAX_VALUE;
+	private static int decreases = 0;
+
+	/**
+	 * Start from the max limit, a healthy server is served as fast as without limiter.
+	 */
+	public static synchronized void configure(int max) {
+		maxLimit = max < 1 ? 1 : max;
+		limit = maxLimit;
+		lowestLimit = (int)limit;
+		recentLatency = new double[]{-1, -1};
+		longRunLatency = new double[]{-1, -1};
+		lastDecrease = 0;
+		decreases = 0;
+		startTime = System.currentTimeMillis();
+		LOGGER.info("Concurrency limit: {}, max {}", (int)limit, maxLimit);
+	}
+
+	/**
+	 * Wait for a free slot, return the time to pass to release().
+	 */
+	public static synchronized long acquire() {
+		while (inFlight >= (int)limit) {
+			try {
+				ConcurrencyLimiter.class.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for a request slot.");
+			}
+		}
+		inFlight++;
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Free the slot, kind is REST_REQUEST or IMAGE_REQUEST, start is the time returned by acquire(),
+	 * responded the time the response headers arrived, 0 if they did not arrive. Overloaded is
+	 * true for 429 and 5xx statuses and network errors.
+	 */
+	public static synchronized void release(int kind, long start, long responded, boolean overloaded) {
+		inFlight--;
+		long now = System.currentTimeMillis();
+		int oldLimit = (int)limit;
+		String reason = null;
+		if (!overloaded && responded > 0) {
+			long latency = responded - start;
+			if (recentLatency[kind] < 0) {
+				recentLatency[kind] = latency;
+				longRunLatency[kind] = latency;
+			} else {
+				recentLatency[kind] += RECENT_WEIGHT * (latency - recentLatency[kind]);
+				longRunLatency[kind] += LONG_RUN_WEIGHT * (latency - longRunLatency[kind]);
+			}
+		}
+		if (overloaded) {
+			reason = "server overloaded";
+		} else if (recentLatency[kind] > LATENCY_TOLERANCE * longRunLatency[kind]) {
+			reason = (kind == IMAGE_REQUEST ? "image" : "REST") + " latency " + (long)recentLatency[kind]
+					+ " ms, usually " + (long)longRunLatency[kind] + " ms";
+		}
+		if (reason != null) {
+			if (now - lastDecrease >= Math.max(MIN_DECREASE_INTERVAL, (long)longRunLatency[kind])) {
+				limit = Math.max(1, limit * DECREASE_FACTOR);
+				lastDecrease = now;
+				decreases++;
+			}
+		} else if (limit < maxLimit) {
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		if ((int)limit != oldLimit) {
+			lowestLimit = Math.min(lowestLimit, (int)limit);
+			if (reason != null)
+				LOGGER.info("Concurrency limit: {} at {} s ({})", new Object[]{(int)limit, (now - startTime) / 1000, reason});
+			else
+				LOGGER.info("Concurrency limit: {} at {} s", (int)limit, (now - startTime) / 1000);
+		}
+		ConcurrencyLimiter.class.notifyAll();
+	}
+
+	public static synchronized int getLimit() {
+		return (int)limit;
+	}
+
+	public static synchronized int getLowestLimit() {
+		return lowestLimit;
+	}
+
+	public static synchronized int getDecreaseCount() {
+		return decreases;
+	}
+
+}
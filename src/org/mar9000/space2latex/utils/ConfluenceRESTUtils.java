@@ -16,79 +16,176 @@
  */
 package org.mar9000.space2latex.utils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.download.PageDownloader;
+import org.mar9000.space2latex.download.PagePrefetcher;
 
 public class ConfluenceRESTUtils {
 
 	public static final int LIMIT_FOR_REQUEST = 25;
-	public static final int MAX_REQUEST_TRY = 5;
+	// Expanded on the listing query so pages do not need a further request for the body.
+	public static final String LISTING_EXPAND = "body.storage,children.attachment";
+	// Incremental download: versions only, bodies are requested for the changed pages.
+	public static final String INCREMENTAL_LISTING_EXPAND = "version,children.attachment.version";
 	
 	public static void getPages(String urlString, int start, int limit, File destDir) throws MalformedURLException {
-		int count = 0;
-		int currentLimit = limit < LIMIT_FOR_REQUEST ? limit : LIMIT_FOR_REQUEST;
-		while (true) {
-			System.out.println("Request pages: start=" + start + ", limit=" + currentLimit);
-			JSONObject json = getURLResponse(urlString, start, currentLimit);
-			String type = json.optString(WikiPage.JSON_TYPE_ATTR);
-			if (WikiPage.JSON_TYPE_VALUE_PAGE.equals(type)) {
-				// Single page query,
-				WikiPage page = WikiPage.getWikiPage(json);
-				try {
-					page.save(destDir);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new RuntimeException("Error saving page " + page.title + "(" + page.id + ")");
-				}
-				return;
-			} else if (json.optJSONObject(WikiPage.JSON_PAGE_ATTR) != null) {
-				// A space query.
-				JSONObject pageArray = json.getJSONObject(WikiPage.JSON_PAGE_ATTR);
-				JSONArray results = pageArray.getJSONArray(WikiPage.JSON_RESULTS_ATTR);
-				if (results.length() == 0)
-					return;
-				// Save pages returned by last REST request.
-				for (int p = 0; p < results.length(); p++) {
-					WikiPage page = WikiPage.getWikiPage((JSONObject)results.get(p));
-					try {
-						page.save(destDir);
-					} catch (IOException e) {
-						e.printStackTrace();
-						throw new RuntimeException("Error saving page " + page.title + "(" + page.id + ")");
-					}
-				}
-				// Finish?
-				// Less records than requested.
-				if (results.length() < currentLimit) {
-					return;
-				}
-				// Download next chunk.
-				count += results.length();
-				if (count >= limit)   // Greater than should never happen.
-					return;
-				start += results.length();
-				currentLimit = (limit-count) < LIMIT_FOR_REQUEST ? limit-count : LIMIT_FOR_REQUEST;
-			} else {
-				throw new RuntimeException("Unknown response from server:" + json.toString());
+		getPages(urlString, start, limit, destDir, 1);
+	}
+
+	public static void getPages(String urlString, int start, int limit, File destDir, int threads) throws MalformedURLException {
+		getPages(urlString, start, limit, destDir, threads, 1);
+	}
+
+	/**
+	 * Download pages returned by the passed URL, "windows" requests are kept in flight
+	 * ahead of the pages being downloaded by the "threads" workers.
+	 */
+	public static void getPages(String urlString, int start, int limit, File destDir, int threads, int windows)
+			throws MalformedURLException {
+		PageDownloader downloader = new PageDownloader(destDir, threads);
+		try {
+			getPages(urlString, start, limit, downloader, windows, LISTING_EXPAND);
+		} finally {
+			downloader.finish();
+		}
+	}
+
+	/**
+	 * Submit the pages returned by the passed URL to the downloader, the caller has to finish() it.
+	 * Return true if the listing has been read to the end.
+	 */
+	public static boolean getPages(String urlString, int start, int limit, PageDownloader downloader, int windows
+			, String expand) throws MalformedURLException {
+		PagePrefetcher prefetcher = new PagePrefetcher(urlString, start, limit, windows, expand);
+		prefetcher.start();
+		try {
+			JSONObject json = null;
+			while ((json = prefetcher.take()) != null) {
+				downloader.submit(json);
 			}
+			return prefetcher.isComplete();
+		} finally {
+			prefetcher.stop();
 		}
 	}
 
+	/**
+	 * Add properties to the "expand" parameter of the URL, creating it when missing.
+	 */
+	public static String addExpand(String urlString, String expand) throws MalformedURLException {
+		URL url = new URL(urlString);
+		String query = url.getQuery();
+		if (query == null)
+			return urlString + "?expand=" + expand;
+		int expandIndex = ("&" + query).indexOf("&expand=");
+		if (expandIndex == -1)
+			return urlString + "&expand=" + expand;
+		// Insert after "expand=" into the original URL string.
+		int insertAt = urlString.indexOf('?') + 1 + expandIndex + "expand=".length();
+		return urlString.substring(0, insertAt) + expand + "," + urlString.substring(insertAt);
+	}
+
 	public static JSONObject getURLResponse(String urlString) throws MalformedURLException {
 		return getURLResponse(urlString, 0, LIMIT_FOR_REQUEST);
 	}
 
 	public static JSONObject getURLResponse(String urlString, int start, int limit) throws MalformedURLException {
-		StringBuffer buffer = new StringBuffer();
+		try {
+			return request(addLimit(urlString, start, limit), new ResponseReader<JSONObject>() {
+				@Override
+				public JSONObject read(Reader reader) {
+					// Parsed while read, the body is never held as a whole string.
+					return new JSONObject(new JSONTokener(reader));
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for " + urlString);
+		}
+	}
+
+	/**
+	 * Receives the pages of a listing one at a time, while the response is read.
+	 */
+	public interface PageConsumer {
+		void page(JSONObject page) throws InterruptedException;
+	}
+
+	/**
+	 * Request a listing and pass its pages to the consumer while the response is read, only
+	 * the page being parsed is held in memory. If the URL is the one of a single page the page
+	 * is returned, otherwise null. When the request fails after some pages have been passed
+	 * to the consumer, those pages are skipped in the response of the next attempt.
+	 */
+	public static JSONObject getURLPages(String urlString, int start, int limit, final PageConsumer consumer)
+			throws MalformedURLException, InterruptedException {
+		final int[] consumed = new int[]{0};
+		return request(addLimit(urlString, start, limit), new ResponseReader<JSONObject>() {
+			@Override
+			public JSONObject read(Reader reader) throws InterruptedException {
+				return readListing(new JSONPullParser(reader), consumed, consumer);
+			}
+		});
+	}
+
+	/**
+	 * Read a listing, {"page": {"results": [...], ...}, ...}, or a single page.
+	 */
+	private static JSONObject readListing(JSONPullParser parser, int[] consumed, PageConsumer consumer)
+			throws InterruptedException {
+		if (parser.next() != JSONPullParser.START_OBJECT)
+			throw new JSONException("A JSONObject text must begin with '{'");
+		JSONObject json = new JSONObject();
+		boolean listing = false;
+		while (parser.next() == JSONPullParser.KEY) {
+			String key = parser.getKey();
+			int event = parser.next();
+			if (key.equals(WikiPage.JSON_PAGE_ATTR) && event == JSONPullParser.START_OBJECT) {
+				listing = true;
+				readResults(parser, consumed, consumer);
+			} else {
+				json.put(key, parser.readValue());
+			}
+		}
+		if (listing)
+			return null;
+		if (!WikiPage.JSON_TYPE_VALUE_PAGE.equals(json.optString(WikiPage.JSON_TYPE_ATTR)))
+			throw new RuntimeException("Unknown response from server:" + json.toString());
+		return json;
+	}
+
+	private static void readResults(JSONPullParser parser, int[] consumed, PageConsumer consumer)
+			throws InterruptedException {
+		while (parser.next() == JSONPullParser.KEY) {
+			String key = parser.getKey();
+			int event = parser.next();
+			if (!key.equals(WikiPage.JSON_RESULTS_ATTR) || event != JSONPullParser.START_ARRAY) {
+				parser.skipValue();
+				continue;
+			}
+			int index = 0;
+			while (parser.next() == JSONPullParser.START_OBJECT) {
+				if (index++ < consumed[0]) {
+					// Already passed to the consumer by a failed attempt.
+					parser.skipValue();
+					continue;
+				}
+				consumer.page((JSONObject)parser.readValue());
+				consumed[0]++;
+			}
+		}
+	}
+
+	private static String addLimit(String urlString, int start, int limit) throws MalformedURLException {
 		// Always add limit.
 		URL receivedURL = new URL(urlString);
 		if (receivedURL.getQuery() == null)
@@ -99,50 +196,53 @@ public class ConfluenceRESTUtils {
 		if (start != 0) {
 			urlString += "&start=" + start;
 		}
-		URL requestURL = new URL(urlString);
-		URLConnection urlConn = null;
-		int count = MAX_REQUEST_TRY;
-		while (urlConn == null && count > 0) {
-			try {
-				urlConn = requestURL.openConnection();
-			} catch (IOException e) {
-				try {
-					Thread.sleep(1000*5);
-				} catch (InterruptedException e1) {}
-				count--;
-				urlConn = null;
-			}
-		}
-		if (urlConn == null)
-			throw new RuntimeException("Max retry count reached for open URL: " + urlString);
-		//
-		BufferedReader reader = null;
-		count = MAX_REQUEST_TRY;
-		while (reader == null && count > 0) {
+		new URL(urlString);   // Check the URL.
+		return urlString;
+	}
+
+	/**
+	 * Reads the body of a successful response.
+	 */
+	private interface ResponseReader<T> {
+		T read(Reader reader) throws InterruptedException;
+	}
+
+	/**
+	 * Send the request until it succeeds or the retry policy gives up. Network errors while the body
+	 * is being read are retried too, the tokener reports them as JSONException.
+	 */
+	private static <T> T request(String urlString, ResponseReader<T> responseReader) throws InterruptedException {
+		RetryPolicy.Retry retry = RetryPolicy.newRetry();
+		while (true) {
+			long delay = -1;
+			boolean overloaded = false;
+			HttpClient.Response response = null;
+			long responded = 0;
+			long slot = ConcurrencyLimiter.acquire();
 			try {
-				reader = new BufferedReader(new InputStreamReader(urlConn.getInputStream()));
+				response = HttpClient.get(urlString);
+				responded = System.currentTimeMillis();
+				if (response.isSuccessful())
+					return responseReader.read(response.getReader());
+				overloaded = RetryPolicy.isRetryable(response.status);
+				delay = retry.nextDelay(response);
 			} catch (IOException e) {
-				reader = null;
-				count--;
-				try {
-					Thread.sleep(1000*5);
-				} catch (InterruptedException e1) {}
-			}
-		}
-		if (reader == null)
-			throw new RuntimeException("Max retry count reached for open InputStream: " + urlString);
-		//
-		try {
-			String inputLine;
-			while ((inputLine = reader.readLine()) != null) {
-				buffer.append(inputLine);
+				overloaded = true;
+				delay = retry.nextDelay(e);
+			} catch (JSONException e) {
+				if (!(e.getCause() instanceof IOException))
+					throw e;
+				overloaded = true;
+				delay = retry.nextDelay((IOException)e.getCause());
+			} finally {
+				if (response != null)
+					response.close();
+				ConcurrencyLimiter.release(ConcurrencyLimiter.REST_REQUEST, slot, responded, overloaded);
 			}
-			reader.close();
-		} catch (IOException e) {
-			throw new RuntimeException("Error reading line from URL: " + urlString);
+			if (delay < 0 || !retry.sleep(delay))
+				throw new RuntimeException("Request failed after " + retry.getAttempts() + " attempts ("
+						+ retry.getLastFailure() + ") for URL: " + urlString);
 		}
-		// Return.
-		return new JSONObject(buffer.toString());
 	}
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The HTTP layer shared by REST requests and image downloads.
+ * It relies on the keep-alive cache of HttpURLConnection: a connection goes back to the pool
+ * only when its response has been read to the end and closed, error responses included,
+ * so every Response must be closed.
+ * All the HTTPS connections use the same socket factory, which counts the connections opened.
+ * Plain HTTP connections are not counted, HttpURLConnection does not let a socket factory be set for them.
+ */
+public class HttpClient {
+
+	public static final int DEFAULT_POOL_SIZE = 5;
+	public static final int DEFAULT_TIMEOUT = 60;   // Seconds.
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static int timeoutMillis = DEFAULT_TIMEOUT * 1000;
+	private static AtomicInteger requests = new AtomicInteger();
+	private static AtomicInteger httpsRequests = new AtomicInteger();
+	private static CountingSSLSocketFactory sslSocketFactory = null;
+
+	/**
+	 * To be called before the first request, the pool size is read once by the JDK.
+	 */
+	public static void configure(int poolSize, int timeoutSeconds, boolean keepAlive) {
+		System.setProperty("http.keepAlive", Boolean.toString(keepAlive));
+		System.setProperty("http.maxConnections", Integer.toString(poolSize));
+		timeoutMillis = timeoutSeconds * 1000;
+	}
+
+	/**
+	 * Send a GET request, HTTP errors are returned as responses and not thrown.
+	 */
+	public static Response get(String urlString) throws IOException {
+		return get(urlString, null);
+	}
+
+	/**
+	 * Send a GET request with additional headers, headers can be null.
+	 */
+	public static Response get(String urlString, Map<String, String> headers) throws IOException {
+		URL url = new URL(urlString);
+		URLConnection urlConn = url.openConnection();
+		if (!(urlConn instanceof HttpURLConnection))
+			throw new IOException("Not an HTTP URL: " + urlString);
+		HttpURLConnection conn = (HttpURLConnection)urlConn;
+		if (conn instanceof HttpsURLConnection) {
+			((HttpsURLConnection)conn).setSSLSocketFactory(getSSLSocketFactory());
+			httpsRequests.incrementAndGet();
+		}
+		conn.setConnectTimeout(timeoutMillis);
+		conn.setReadTimeout(timeoutMillis);
+		if (headers != null) {
+			for (String name : headers.keySet()) {
+				conn.setRequestProperty(name, headers.get(name));
+			}
+		}
+		requests.incrementAndGet();
+		Response response = new Response(conn);
+		response.status = conn.getResponseCode();
+		return response;
+	}
+
+	private static synchronized SSLSocketFactory getSSLSocketFactory() {
+		if (sslSocketFactory == null)
+			sslSocketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+		return sslSocketFactory;
+	}
+
+	public static int getRequestCount() {
+		return requests.get();
+	}
+
+	public static int getHttpsRequestCount() {
+		return httpsRequests.get();
+	}
+
+	public static synchronized int getHttpsConnectionCount() {
+		return sslSocketFactory == null ? 0 : sslSocketFactory.sockets.get();
+	}
+
+	/**
+	 * A response, the body can be read once either as bytes or as a stream.
+	 */
+	public static class Response {
+
+		private HttpURLConnection conn = null;
+		private InputStream in = null;
+		public int status = -1;
+
+		private Response(HttpURLConnection conn) {
+			this.conn = conn;
+		}
+
+		public boolean isSuccessful() {
+			return status >= 200 && status < 300;
+		}
+
+		public String getHeader(String name) {
+			return conn.getHeaderField(name);
+		}
+
+		/**
+		 * Body of the response, the error body for error statuses.
+		 */
+		public InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+			}
+			return in;
+		}
+
+		public byte[] readBytes() throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			InputStream body = getInputStream();
+			if (body != null) {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int n = 0;
+				while (-1 != (n = body.read(buf))) {
+					out.write(buf, 0, n);
+				}
+			}
+			return out.toByteArray();
+		}
+
+		public String readString() throws IOException {
+			return new String(readBytes(), getCharset());
+		}
+
+		/**
+		 * Body of the response decoded with the charset of the Content-Type, to be read while it arrives.
+		 */
+		public Reader getReader() throws IOException {
+			return new InputStreamReader(getInputStream(), getCharset());
+		}
+
+		private String getCharset() {
+			String charset = "UTF-8";
+			String contentType = getHeader("Content-Type");
+			if (contentType != null && contentType.indexOf("charset=") != -1)
+				charset = contentType.substring(contentType.indexOf("charset=") + "charset=".length()).trim();
+			return charset;
+		}
+
+		/**
+		 * Read what is left of the body and close it, this lets the connection go back to the pool.
+		 */
+		public void close() {
+			try {
+				InputStream body = getInputStream();
+				if (body != null) {
+					byte[] buf = new byte[BUFFER_SIZE];
+					while (body.read(buf) != -1) {
+						// Drain.
+					}
+					body.close();
+				}
+			} catch (IOException e) {
+				// The connection will not be reused.
+				conn.disconnect();
+			}
+		}
+
+	}
+
+	private static class CountingSSLSocketFactory extends SSLSocketFactory {
+
+		private SSLSocketFactory delegate = null;
+		private AtomicInteger sockets = new AtomicInteger();
+
+		private CountingSSLSocketFactory(SSLSocketFactory delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket();
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket(s, host, port, autoClose);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket(host, port, localHost, localPort);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			sockets.incrementAndGet();
+			return delegate.createSocket(address, port, localAddress, localPort);
+		}
+
+	}
+
+}
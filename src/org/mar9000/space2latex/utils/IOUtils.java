@@ -16,20 +16,34 @@
  */
 package org.mar9000.space2latex.utils;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mar9000.space2latex.WikiImage;
 
 public class IOUtils {
 
@@ -50,6 +64,145 @@ public class IOUtils {
 		return buffer.toString();
 	}
 
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * The SHA-256 of bytes, in hex.
+	 */
+	public static String sha256(byte[] bytes) {
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The first line of a file, without line terminator, null if empty.
+	 */
+	public static String readFirstLine(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Same result as {@link #readFileAsString(File)}, the file is read and decoded at once
+	 * instead of being copied line by line. The file is not mapped: a mapping is released
+	 * only when garbage collected and, until then, the file cannot be deleted or replaced on Windows.
+	 */
+	public static String readWholeFile(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		return normalizeLines(Charset.defaultCharset().decode(ByteBuffer.wrap(bytes)));
+	}
+
+	/**
+	 * Line terminators as returned by readFileAsString(): "\r\n" and "\r" become "\n"
+	 * and the last line is terminated.
+	 */
+	private static String normalizeLines(CharBuffer chars) {
+		int length = chars.remaining();
+		boolean normalized = length == 0 || chars.get(length - 1) == '\n';
+		for (int c = 0; normalized && c < length; c++) {
+			if (chars.get(c) == '\r')
+				normalized = false;
+		}
+		if (normalized)
+			return chars.toString();
+		StringBuilder result = new StringBuilder(length + 1);
+		for (int c = 0; c < length; c++) {
+			char ch = chars.get(c);
+			if (ch == '\r') {
+				result.append('\n');
+				if (c + 1 < length && chars.get(c + 1) == '\n')
+					c++;
+			} else {
+				result.append(ch);
+			}
+		}
+		if (result.length() > 0 && result.charAt(result.length() - 1) != '\n')
+			result.append('\n');
+		return result.toString();
+	}
+
+	/**
+	 * Read the lines of an append only file written as UTF-8, the last line is ignored
+	 * if not terminated by a new line: it may have been cut by a crash.
+	 */
+	public static List<String> readCompleteLines(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try {
+			byte[] buf = new byte[HttpClient.BUFFER_SIZE];
+			int n = 0;
+			while (-1 != (n = in.read(buf))) {
+				data.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String content = data.toString("UTF-8");
+		List<String> lines = new ArrayList<String>();
+		int start = 0;
+		int end = 0;
+		while ((end = content.indexOf('\n', start)) != -1) {
+			lines.add(content.substring(start, end));
+			start = end + 1;
+		}
+		return lines;
+	}
+
+	/**
+	 * Escape the backslashes, tabs and line ends of a field of a tab separated line.
+	 */
+	public static String escapeField(String field) {
+		if (field == null)
+			return "";
+		StringBuilder escaped = new StringBuilder(field.length());
+		for (int c = 0; c < field.length(); c++) {
+			char ch = field.charAt(c);
+			if (ch == '\\')
+				escaped.append("\\\\");
+			else if (ch == '\t')
+				escaped.append("\\t");
+			else if (ch == '\n')
+				escaped.append("\\n");
+			else if (ch == '\r')
+				escaped.append("\\r");
+			else
+				escaped.append(ch);
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * The field escaped by escapeField().
+	 */
+	public static String unescapeField(String field) {
+		if (field.indexOf('\\') == -1)
+			return field;
+		StringBuilder unescaped = new StringBuilder(field.length());
+		for (int c = 0; c < field.length(); c++) {
+			char ch = field.charAt(c);
+			if (ch == '\\' && c + 1 < field.length()) {
+				char next = field.charAt(++c);
+				unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+			} else {
+				unescaped.append(ch);
+			}
+		}
+		return unescaped.toString();
+	}
+
 	public static String readResourceAsString(String resourceName) throws IOException, URISyntaxException {
 		URL resourceURL = IOUtils.class.getResource(resourceName);
 		File resource = new File(resourceURL.toURI());
@@ -71,64 +224,135 @@ public class IOUtils {
 	}
 	
 	private static final byte[] MISSING_IMAGE_DATA = "MISSING_IMAGE_DATA".getBytes();
-	public static byte[] getImageFromURL(String urlString) throws MalformedURLException {
-		URL url = new URL(urlString);
-		//
-		URLConnection urlConn = null;
-		int count = ConfluenceRESTUtils.MAX_REQUEST_TRY;
-		while (urlConn == null && count > 0) {
+	private static final int MAX_REDIRECTS = 5;
+	
+	/**
+	 * Download the image straight to destFile, sending the ETag and Last-Modified of the image already
+	 * saved. The status and the validators of the image are updated, on 304 Not Modified the file is kept.
+	 * When the download fails a placeholder is saved instead of the image.
+	 */
+	public static void saveImageFromURL(String urlString, File destFile, WikiImage image) throws IOException {
+		saveImageFromURL(urlString, destFile, image, null);
+	}
+	
+	/**
+	 * As {@link #saveImageFromURL(String, File, WikiImage)}, digest is updated with the data saved.
+	 */
+	public static void saveImageFromURL(String urlString, File destFile, WikiImage image, MessageDigest digest)
+			throws IOException {
+		new URL(urlString);   // Check the URL.
+		Map<String, String> headers = new HashMap<String, String>();
+		if (image.etag != null)
+			headers.put("If-None-Match", image.etag);
+		if (image.lastModified != null)
+			headers.put("If-Modified-Since", image.lastModified);
+		String location = urlString;
+		int redirects = MAX_REDIRECTS;
+		RetryPolicy.Retry retry = RetryPolicy.newRetry();
+		while (true) {
+			long delay = -1;
+			boolean overloaded = false;
+			HttpClient.Response response = null;
+			long responded = 0;
+			long slot = ConcurrencyLimiter.acquire();
 			try {
-				urlConn = url.openConnection();
+				response = HttpClient.get(location, headers);
+				responded = System.currentTimeMillis();
+				if (response.status == 304 && !headers.isEmpty()) {
+					image.status = WikiImage.NOT_MODIFIED;
+					return;
+				}
+				String contentType = response.getHeader("Content-Type");
+				if (response.isSuccessful() && contentType != null && contentType.startsWith("image")) {
+					writeStreamToFile(response.getInputStream(), destFile, digest);
+					image.etag = response.getHeader("ETag");
+					image.lastModified = response.getHeader("Last-Modified");
+					image.status = WikiImage.DOWNLOADED;
+					return;
+				}
+				// Try Location returned in case of HTTP error 301.
+				String newLocation = response.getHeader("Location");
+				if (newLocation != null && redirects > 0) {
+					location = newLocation;
+					redirects--;
+					continue;
+				}
+				if (response.isSuccessful() || response.status < 400) {
+					System.err.println("Content-Type returned is not an image and does not have a Location header field.");
+					break;
+				}
+				overloaded = RetryPolicy.isRetryable(response.status);
+				delay = retry.nextDelay(response);
 			} catch (IOException e) {
-				count--;
-				urlConn = null;
+				overloaded = true;
+				delay = retry.nextDelay(e);
+			} finally {
+				if (response != null)
+					response.close();
+				ConcurrencyLimiter.release(ConcurrencyLimiter.IMAGE_REQUEST, slot, responded, overloaded);
 			}
-		}
-		if (urlConn == null) {
-			System.err.println("Max retry reached to open connection for URL: " + urlString);
-			return MISSING_IMAGE_DATA;
-		}
-		//
-		if (!urlConn.getHeaderField("Content-Type").startsWith("image")) {
-			// Try Location returned in case of HTTP error 301.
-			String location = urlConn.getHeaderField("Location");
-			if (location == null) {
-				System.err.println("Content-Type returned is not an image and does not have a Location header field.");
-				return MISSING_IMAGE_DATA;
+			if (delay < 0 || !retry.sleep(delay)) {
+				System.err.println("Download failed after " + retry.getAttempts() + " attempts ("
+						+ retry.getLastFailure() + ") for URL: " + urlString);
+				break;
 			}
-			url = new URL(location);
 		}
-		//
-		count = ConfluenceRESTUtils.MAX_REQUEST_TRY;
-		InputStream in = null;
-		while (in == null && count > 0) {
+		// A file saved before, revalidated or not, is better than the placeholder.
+		if (!headers.isEmpty() || destFile.length() > 0) {
+			System.err.println("The image saved before is kept: " + destFile.getAbsolutePath());
+			image.status = WikiImage.KEPT;
+			return;
+		}
+		writeStreamToFile(new ByteArrayInputStream(MISSING_IMAGE_DATA), destFile, digest);
+		image.status = WikiImage.MISSING;
+	}
+	
+	/**
+	 * Copy the stream to a temporary file of the same directory, then rename it to destFile.
+	 * A failed copy does not leave a partial destFile and concurrent writers of the same file
+	 * do not mix their data.
+	 */
+	public static void writeStreamToFile(InputStream in, File destFile) throws IOException {
+		writeStreamToFile(in, destFile, null);
+	}
+	
+	/**
+	 * As {@link #writeStreamToFile(InputStream, File)}, digest, if not null, is reset and then updated
+	 * with the data copied.
+	 */
+	public static void writeStreamToFile(InputStream in, File destFile, MessageDigest digest) throws IOException {
+		if (digest != null)
+			digest.reset();
+		File tmpFile = File.createTempFile("." + destFile.getName() + ".", ".tmp", destFile.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(tmpFile);
 			try {
-				in = new BufferedInputStream(url.openStream());
-			} catch (IOException e) {
-				count --;
-				in = null;
+				byte[] buf = new byte[HttpClient.BUFFER_SIZE];
+				int n = 0;
+				while (-1 != (n = in.read(buf))) {
+					out.write(buf, 0, n);
+					if (digest != null)
+						digest.update(buf, 0, n);
+				}
+			} finally {
+				out.close();
 			}
+			replaceFile(tmpFile, destFile);
+		} finally {
+			// Only left on errors.
+			tmpFile.delete();
 		}
-		if (in == null) {
-			System.err.println("Max retry reached to open input stream for URL: " + urlString);
-			return MISSING_IMAGE_DATA;
-		}
-		//
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		byte[] buf = new byte[1024];
-		int n = 0;
+	}
+
+	/**
+	 * Rename source to target, replacing target if it exists, atomically where the file system allows it.
+	 */
+	public static void replaceFile(File source, File target) throws IOException {
 		try {
-			while (-1 != (n = in.read(buf))) {
-				out.write(buf, 0, n);
-			}
-			out.close();
-			in.close();
-		} catch (IOException e) {
-			System.err.println("Error during read line from input stream of URL: " + urlString);
-			return MISSING_IMAGE_DATA;
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
 		}
-		byte[] response = out.toByteArray();
-		return response;
 	}
 
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.utils;
+
+import java.io.Reader;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * A JSONPullParser reads a JSON text from a JSONTokener as a sequence of
+ * events, without building the whole text in memory. The caller asks for the
+ * next event with {@link #next()} and, when positioned on the start of an
+ * object or an array, can either step into it, materialize it with
+ * {@link #readValue()} or skip it with {@link #skipValue()}.
+ * <p>
+ * For example, to read the elements of a large array one at a time:
+ * <pre>
+ * JSONPullParser parser = new JSONPullParser(reader);
+ * parser.next();                                   // START_ARRAY
+ * while (parser.next() == JSONPullParser.START_OBJECT) {
+ *     JSONObject element = (JSONObject)parser.readValue();
+ * }
+ * </pre>
+ * The same non-standard forms accepted by JSONObject and JSONArray are
+ * accepted: unquoted keys and strings, ';' between pairs, trailing commas.
+ */
+public class JSONPullParser {
+
+    /** The parser is positioned after a '{'. */
+    public static final int START_OBJECT = 1;
+
+    /** The parser is positioned after a '}'. */
+    public static final int END_OBJECT = 2;
+
+    /** The parser is positioned after a '['. */
+    public static final int START_ARRAY = 3;
+
+    /** The parser is positioned after a ']'. */
+    public static final int END_ARRAY = 4;
+
+    /** A key has been read, see {@link #getKey()}. */
+    public static final int KEY = 5;
+
+    /** A string, number, boolean or null has been read, see {@link #getValue()}. */
+    public static final int VALUE = 6;
+
+    /** There is nothing more to read. */
+    public static final int END_DOCUMENT = 7;
+
+    private JSONTokener x;
+
+    /** The containers opened and not yet closed, '{' or '['. */
+    private ArrayList<Character> stack = new ArrayList<Character>();
+
+    /** True when a value is expected after a key. */
+    private boolean afterKey = false;
+
+    /** True when nothing has been read in the current container. */
+    private boolean first = true;
+
+    private boolean started = false;
+    private int event = 0;
+    private String key = null;
+    private Object value = null;
+
+
+    /**
+     * Construct a JSONPullParser reading from a JSONTokener.
+     *
+     * @param x A JSONTokener.
+     */
+    public JSONPullParser(JSONTokener x) {
+        this.x = x;
+    }
+
+
+    /**
+     * Construct a JSONPullParser reading from a Reader.
+     *
+     * @param reader A reader.
+     */
+    public JSONPullParser(Reader reader) {
+        this(new JSONTokener(reader));
+    }
+
+
+    /**
+     * Read the next event.
+     *
+     * @return One of START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY,
+     *         VALUE or END_DOCUMENT.
+     * @throws JSONException If the text is not valid JSON.
+     */
+    public int next() throws JSONException {
+        this.key = null;
+        this.value = null;
+        if (this.stack.isEmpty()) {
+            if (this.started) {
+                return this.event = END_DOCUMENT;
+            }
+            this.started = true;
+            char c = this.x.nextClean();
+            if (c == 0) {
+                return this.event = END_DOCUMENT;
+            }
+            return this.event = this.startValue(c);
+        }
+        if (this.afterKey) {
+            this.afterKey = false;
+            return this.event = this.startValue(this.x.nextClean());
+        }
+        char c = this.nextMember();
+        if (this.inObject()) {
+            if (c == '}') {
+                this.pop();
+                return this.event = END_OBJECT;
+            }
+            this.x.back();
+            this.key = this.x.nextValue().toString();
+            if (this.x.nextClean() != ':') {
+                throw this.x.syntaxError("Expected a ':' after a key");
+            }
+            this.afterKey = true;
+            return this.event = KEY;
+        }
+        if (c == ']') {
+            this.pop();
+            return this.event = END_ARRAY;
+        }
+        return this.event = this.startValue(c);
+    }
+
+
+    /**
+     * Read the separator before the next member of the current container,
+     * return the first character of the member or the closing character.
+     */
+    private char nextMember() throws JSONException {
+        char close = this.inObject() ? '}' : ']';
+        char c = this.x.nextClean();
+        if (c == 0) {
+            throw this.x.syntaxError("Expected a '" + close + "'");
+        }
+        if (this.first || c == close) {
+            this.first = false;
+            return c;
+        }
+        if (c != ',' && !(c == ';' && this.inObject())) {
+            throw this.x.syntaxError("Expected a ',' or '" + close + "'");
+        }
+        c = this.x.nextClean();
+        if (c == 0) {
+            throw this.x.syntaxError("Expected a '" + close + "'");
+        }
+        return c;
+    }
+
+
+    private int startValue(char c) throws JSONException {
+        switch (c) {
+        case '{':
+            this.stack.add(Character.valueOf('{'));
+            this.first = true;
+            return START_OBJECT;
+        case '[':
+            this.stack.add(Character.valueOf('['));
+            this.first = true;
+            return START_ARRAY;
+        case 0:
+            throw this.x.syntaxError("Missing value");
+        default:
+            this.x.back();
+            this.value = this.x.nextValue();
+            return VALUE;
+        }
+    }
+
+
+    private void pop() {
+        this.stack.remove(this.stack.size() - 1);
+        // The parent contains at least the closed container.
+        this.first = false;
+    }
+
+
+    private boolean inObject() {
+        return this.stack.get(this.stack.size() - 1).charValue() == '{';
+    }
+
+
+    /**
+     * Get the key read by the last KEY event.
+     *
+     * @return The key, or null if the last event is not KEY.
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+
+    /**
+     * Get the value read by the last VALUE event.
+     *
+     * @return A Boolean, Double, Integer, Long, String or JSONObject.NULL,
+     *         or null if the last event is not VALUE.
+     */
+    public Object getValue() {
+        return this.value;
+    }
+
+
+    /**
+     * Get the number of objects and arrays opened and not yet closed.
+     *
+     * @return The depth, 0 outside of the top level value.
+     */
+    public int getDepth() {
+        return this.stack.size();
+    }
+
+
+    /**
+     * Read the whole value the parser is positioned on. After START_OBJECT
+     * or START_ARRAY the object or the array is read up to its end, which
+     * is not reported as an event. After VALUE the value is returned.
+     *
+     * @return A JSONObject, JSONArray or the value of the last VALUE event.
+     * @throws JSONException If not positioned on a value or on a syntax
+     *         error.
+     */
+    public Object readValue() throws JSONException {
+        switch (this.event) {
+        case VALUE:
+            return this.value;
+        case START_OBJECT:
+        case START_ARRAY:
+            if (!this.first) {
+                break;
+            }
+            // Let the JSONObject or JSONArray read the opening character again.
+            this.x.back();
+            this.pop();
+            this.value = this.event == START_OBJECT
+                    ? (Object)new JSONObject(this.x) : (Object)new JSONArray(this.x);
+            this.event = VALUE;
+            return this.value;
+        }
+        throw new JSONException("Not positioned on a value");
+    }
+
+
+    /**
+     * Skip the object or the array the parser is positioned on, without
+     * building it. Does nothing after VALUE.
+     *
+     * @throws JSONException On a syntax error.
+     */
+    public void skipValue() throws JSONException {
+        if (this.event != START_OBJECT && this.event != START_ARRAY) {
+            return;
+        }
+        int depth = this.getDepth() - 1;
+        while (this.getDepth() > depth) {
+            if (this.next() == END_DOCUMENT) {
+                throw this.x.syntaxError("Unexpected end of text");
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.utils;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * When and how long to wait before sending again a failed request, shared by REST requests and
+ * image downloads. The wait grows exponentially from the base delay up to the max delay, half of
+ * it is random so that workers failing together do not retry together. A Retry-After header sent
+ * with a 429 or 503 status is used instead of the computed delay. Retries stop after the max
+ * attempts or when the next wait would go beyond the max elapsed time.
+ * Network errors, 408, 429 and 5xx statuses are retried, other statuses are not.
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_BASE_DELAY = 1000;   // Milliseconds.
+	public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+	public static final long DEFAULT_MAX_ELAPSED = 5 * 60 * 1000;
+
+	private static int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private static long baseDelay = DEFAULT_BASE_DELAY;
+	private static long maxDelay = DEFAULT_MAX_DELAY;
+	private static long maxElapsed = DEFAULT_MAX_ELAPSED;
+
+	private static AtomicInteger retries = new AtomicInteger();
+	private static AtomicInteger retryAfterWaits = new AtomicInteger();
+	private static AtomicInteger failures = new AtomicInteger();
+	private static Random random = new Random();
+
+	public static void configure(int attempts, long base, long max, long elapsed) {
+		maxAttempts = attempts;
+		baseDelay = base;
+		maxDelay = max;
+		maxElapsed = elapsed;
+	}
+
+	public static int getRetryCount() {
+		return retries.get();
+	}
+
+	public static int getRetryAfterCount() {
+		return retryAfterWaits.get();
+	}
+
+	/**
+	 * The requests that ran out of retries, a status that is not retried is not counted.
+	 */
+	public static int getFailureCount() {
+		return failures.get();
+	}
+
+	public static boolean isRetryable(int status) {
+		return status == 408 || status == 429 || status >= 500;
+	}
+
+	/**
+	 * Start retrying a request.
+	 */
+	public static Retry newRetry() {
+		return new Retry();
+	}
+
+	/**
+	 * The state of the retries of a single request.
+	 */
+	public static class Retry {
+
+		private long start = System.currentTimeMillis();
+		private int attempts = 1;
+		private String lastFailure = null;
+
+		/**
+		 * Return how long to wait after the response with an error status, -1 to give up.
+		 */
+		public long nextDelay(HttpClient.Response response) {
+			lastFailure = "HTTP status " + response.status;
+			if (!isRetryable(response.status))
+				return -1;
+			long retryAfter = -1;
+			if (response.status == 429 || response.status == 503)
+				retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+			return nextDelay(retryAfter);
+		}
+
+		/**
+		 * Return how long to wait after a network error, -1 to give up.
+		 */
+		public long nextDelay(IOException e) {
+			lastFailure = e.toString();
+			return nextDelay(-1);
+		}
+
+		private long nextDelay(long retryAfter) {
+			if (attempts >= maxAttempts)
+				return giveUp();
+			long delay = 0;
+			if (retryAfter >= 0) {
+				delay = retryAfter;
+			} else {
+				long exponential = baseDelay << Math.min(attempts - 1, 30);
+				if (exponential <= 0 || exponential > maxDelay)
+					exponential = maxDelay;
+				synchronized (random) {
+					delay = exponential / 2 + (long)(random.nextDouble() * (exponential / 2));
+				}
+			}
+			if (System.currentTimeMillis() - start + delay > maxElapsed)
+				return giveUp();
+			if (retryAfter >= 0)
+				retryAfterWaits.incrementAndGet();
+			retries.incrementAndGet();
+			attempts++;
+			return delay;
+		}
+
+		private long giveUp() {
+			failures.incrementAndGet();
+			return -1;
+		}
+
+		/**
+		 * Wait before the next attempt, return false if interrupted.
+		 */
+		public boolean sleep(long delay) {
+			try {
+				Thread.sleep(delay);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public String getLastFailure() {
+			return lastFailure;
+		}
+
+	}
+
+	/**
+	 * Retry-After is either a number of seconds or an HTTP date, return milliseconds or -1.
+	 */
+	static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null || retryAfter.trim().length() == 0)
+			return -1;
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		} catch (NumberFormatException e) {
+			// Try the date.
+		}
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		try {
+			Date date = format.parse(retryAfter);
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mar9000.space2latex.utils.IOUtils;
+
+public class PageIndexTest {
+
+	private static final String AC_IMAGE = "<ac:image ac:width=\"300\">\n\t<ri:attachment ri:filename=\"logo.png\" /></ac:image>";
+	private static final String AC_BLOB = "<ac:image><ri:attachment ri:filename=\"shared.png\" /></ac:image>";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String page(String title, String id) {
+		return "<page title=\"" + title + "\" id=\"" + id + "\">\n<wikiimages>\n"
+				+ "<wikiimage pageid=\"" + id + "\" filename=\"logo.png\">\n" + AC_IMAGE + "\n</wikiimage>\n"
+				+ "<wikiimage pageid=\"" + id + "\" filename=\"shared.png\" blob=\"blobs/ab/abcd.png\">\n" + AC_BLOB + "\n</wikiimage>\n"
+				+ "</wikiimages>\n<content><p>" + title + "</p></content>\n</page>\n";
+	}
+
+	@Test
+	public void imagesAndTitlesSavedAndLoaded() throws IOException {
+		File dir = folder.newFolder();
+		PageStore store = new PageDirectory(dir);
+		store.write("page-A.html", "1", "A", page("A", "1"));
+		store.write("page-B.html", "2", "B\tb", page("B\tb", "2"));
+		PageIndex index = new PageIndex(dir);
+		assertFalse(index.load());
+		assertEquals(2, index.update(store));
+		index.save();
+		PageIndex loaded = new PageIndex(dir);
+		assertTrue(loaded.load());
+		assertEquals(2, loaded.size());
+		PageIndex.Entry entry = loaded.getValidEntry(store, "page-B.html");
+		assertNotNull(entry);
+		assertEquals("B\tb", entry.title);
+		assertEquals("2", entry.id);
+		Map<String, WikiImage> images = WikiPage.loadForFormat(store, "page-B.html", entry).getImages();
+		assertEquals(2, images.size());
+		assertEquals("2/logo.png", images.get(AC_IMAGE).filename);
+		assertEquals("blobs/ab/abcd.png", images.get(AC_BLOB).filename);
+	}
+
+	@Test
+	public void pageSavedAgainWithSameSizeAndTime() throws IOException {
+		File dir = folder.newFolder();
+		PageStore store = new PageDirectory(dir);
+		store.write("page-A.html", "1", "A", page("A", "1"));
+		File file = new File(dir, "page-A.html");
+		long lastModified = file.lastModified();
+		PageIndex index = new PageIndex(dir);
+		index.update(store);
+		store.write("page-A.html", "1", "Z", page("Z", "1"));
+		file.setLastModified(lastModified);
+		assertNull(index.getValidEntry(store, "page-A.html"));
+		assertEquals(1, index.update(store));
+		assertEquals("Z", index.getEntry("page-A.html").title);
+	}
+
+	@Test
+	public void packedPagesCheckedByTheirHash() throws IOException {
+		File dir = folder.newFolder();
+		PagePack pack = new PagePack(dir, false);
+		pack.write("page-A.html", "1", "A", page("A", "1"));
+		PageIndex index = new PageIndex(dir);
+		index.update(pack);
+		assertEquals(index.getEntry("page-A.html").hash, pack.getContentHash("page-A.html"));
+		pack.write("page-A.html", "1", "A", page("A", "1"));
+		assertNotNull(index.getValidEntry(pack, "page-A.html"));
+		pack.write("page-A.html", "1", "Z", page("Z", "1"));
+		assertNull(index.getValidEntry(pack, "page-A.html"));
+		pack.close();
+		PagePack reloaded = new PagePack(dir, true);
+		try {
+			assertEquals(IOUtils.sha256(page("Z", "1").getBytes("UTF-8")), reloaded.getContentHash("page-A.html"));
+		} finally {
+			reloaded.close();
+		}
+	}
+
+	@Test
+	public void olderIndexIgnored() throws IOException {
+		File dir = folder.newFolder();
+		IOUtils.saveStringToFile("page\tpage-A.html\t1\tA\t10\t10:0\tabcd\n", new File(dir, PageIndex.INDEX_FILE));
+		assertFalse(new PageIndex(dir).load());
+	}
+
+}
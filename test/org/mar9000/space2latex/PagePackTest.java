@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PagePackTest {
+
+	private static final String PAGE_A = "<page title=\"A\" id=\"1\">\n<content><p>A</p></content>\n</page>";
+	private static final String PAGE_A2 = "<page title=\"A\" id=\"1\">\n<content><p>A again, \u00e0\u00e8\u00ec\u00f2\u00f9</p></content>\n</page>";
+	private static final String PAGE_B = "<page title=\"B\" id=\"2\">\n<content><p>B</p></content>\n</page>";
+	private static final String PAGE_C = "<page title=\"C\" id=\"3\">\n<content><p>C</p></content>\n</page>";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A saved again, B kept and C deleted.
+	 */
+	private PagePack writePages(File dir) throws IOException {
+		PagePack pack = new PagePack(dir, false);
+		pack.write("page-A.html", "1", "A", PAGE_A);
+		pack.write("page-B.html", "2", "B", PAGE_B);
+		pack.write("page-C.html", "3", "C", PAGE_C);
+		pack.write("page-A.html", "1", "A", PAGE_A2);
+		pack.delete("page-C.html");
+		return pack;
+	}
+
+	private static void assertPages(PagePack pack) throws IOException {
+		assertEquals(Arrays.asList("page-A.html", "page-B.html"), pack.list());
+		assertEquals(PAGE_A2, pack.read("page-A.html"));
+		assertEquals(PAGE_B, pack.read("page-B.html"));
+		assertEquals("<page title=\"A\" id=\"1\">", pack.readFirstLine("page-A.html"));
+		assertEquals("A", pack.getEntry("page-A.html").title);
+		assertEquals("2", pack.getEntry("page-B.html").id);
+		assertFalse(pack.exists("page-C.html"));
+		assertNull(pack.getEntry("page-C.html"));
+	}
+
+	@Test
+	public void writeAndReload() throws IOException {
+		File dir = folder.newFolder();
+		PagePack pack = writePages(dir);
+		assertPages(pack);
+		pack.close();
+		assertTrue(PagePack.exists(dir));
+		PagePack readOnly = new PagePack(dir, true);
+		try {
+			assertPages(readOnly);
+		} finally {
+			readOnly.close();
+		}
+	}
+
+	@Test
+	public void reloadFromAppendedIndex() throws IOException {
+		File dir = folder.newFolder();
+		PagePack pack = writePages(dir);
+		// Not closed, the index still holds a line for each write and delete.
+		PagePack reloaded = new PagePack(dir, true);
+		try {
+			assertPages(reloaded);
+		} finally {
+			reloaded.close();
+			pack.close();
+		}
+	}
+
+	@Test
+	public void indexLinesPastTheDataDropped() throws IOException {
+		File dir = folder.newFolder();
+		PagePack pack = writePages(dir);
+		// The data of the last write lost, its index line kept.
+		RandomAccessFile data = new RandomAccessFile(new File(dir, PagePack.DATA_FILE), "rw");
+		try {
+			data.setLength(data.length() - PAGE_A2.getBytes("UTF-8").length);
+		} finally {
+			data.close();
+		}
+		PagePack reloaded = new PagePack(dir, true);
+		try {
+			assertEquals(PAGE_A, reloaded.read("page-A.html"));
+			assertEquals(PAGE_B, reloaded.read("page-B.html"));
+		} finally {
+			reloaded.close();
+			pack.close();
+		}
+	}
+
+	@Test
+	public void titlesWithTabsAndLineEnds() throws IOException {
+		File dir = folder.newFolder();
+		PagePack pack = new PagePack(dir, false);
+		pack.write("page-A.html", "1", "A\tB\nC\\", PAGE_A);
+		pack.write("page-B.html", "2", "B", PAGE_B);
+		PagePack reloaded = new PagePack(dir, true);
+		try {
+			assertEquals(Arrays.asList("page-A.html", "page-B.html"), reloaded.list());
+			assertEquals("A\tB\nC\\", reloaded.getEntry("page-A.html").title);
+		} finally {
+			reloaded.close();
+			pack.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void readOnlyWithoutPack() throws IOException {
+		new PagePack(folder.newFolder(), true);
+	}
+
+	@Test
+	public void compact() throws IOException {
+		File dir = folder.newFolder();
+		File dataFile = new File(dir, PagePack.DATA_FILE);
+		PagePack pack = writePages(dir);
+		long before = dataFile.length();
+		long freed = pack.compact();
+		long pages = PAGE_A2.getBytes("UTF-8").length + PAGE_B.getBytes("UTF-8").length;
+		assertEquals(before - pages, freed);
+		assertEquals(pages, dataFile.length());
+		assertPages(pack);
+		pack.write("page-D.html", "4", "D", "D");
+		pack.close();
+		assertFalse(new File(dir, PagePack.DATA_FILE + ".tmp").exists());
+		assertFalse(new File(dir, PagePack.INDEX_FILE + ".compact").exists());
+		PagePack reloaded = new PagePack(dir, true);
+		try {
+			assertEquals(Arrays.asList("page-A.html", "page-B.html", "page-D.html"), reloaded.list());
+			assertEquals(PAGE_A2, reloaded.read("page-A.html"));
+			assertEquals("D", reloaded.read("page-D.html"));
+		} finally {
+			reloaded.close();
+		}
+	}
+
+	@Test
+	public void crashBeforeDataMoveDiscardsCompaction() throws IOException {
+		File dir = folder.newFolder();
+		writePages(dir).close();
+		// New data and index written, the old ones still in place.
+		File compacted = compactedCopy(dir);
+		copy(new File(compacted, PagePack.DATA_FILE), new File(dir, PagePack.DATA_FILE + ".tmp"));
+		copy(new File(compacted, PagePack.INDEX_FILE), new File(dir, PagePack.INDEX_FILE + ".compact"));
+		assertRecovered(dir);
+		assertFalse(new File(dir, PagePack.DATA_FILE + ".tmp").exists());
+		assertFalse(new File(dir, PagePack.INDEX_FILE + ".compact").exists());
+	}
+
+	@Test
+	public void crashAfterDataMoveCompletesCompaction() throws IOException {
+		File dir = folder.newFolder();
+		writePages(dir).close();
+		// New data moved into place, the new index not yet.
+		File compacted = compactedCopy(dir);
+		copy(new File(compacted, PagePack.DATA_FILE), new File(dir, PagePack.DATA_FILE));
+		copy(new File(compacted, PagePack.INDEX_FILE), new File(dir, PagePack.INDEX_FILE + ".compact"));
+		assertRecovered(dir);
+		assertFalse(new File(dir, PagePack.INDEX_FILE + ".compact").exists());
+	}
+
+	/**
+	 * The pages read from the pack left by a crash, read only without changing it, then recovered
+	 * when opened for writing.
+	 */
+	private static void assertRecovered(File dir) throws IOException {
+		PagePack readOnly = new PagePack(dir, true);
+		try {
+			assertPages(readOnly);
+		} finally {
+			readOnly.close();
+		}
+		assertTrue(new File(dir, PagePack.INDEX_FILE + ".compact").exists());
+		PagePack pack = new PagePack(dir, false);
+		try {
+			assertPages(pack);
+		} finally {
+			pack.close();
+		}
+	}
+
+	/**
+	 * The pack of dir compacted into another directory.
+	 */
+	private File compactedCopy(File dir) throws IOException {
+		File compacted = folder.newFolder();
+		copy(new File(dir, PagePack.DATA_FILE), new File(compacted, PagePack.DATA_FILE));
+		copy(new File(dir, PagePack.INDEX_FILE), new File(compacted, PagePack.INDEX_FILE));
+		PagePack pack = new PagePack(compacted, false);
+		pack.compact();
+		pack.close();
+		return compacted;
+	}
+
+	private static void copy(File source, File target) throws IOException {
+		Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Node;
+import org.junit.Test;
+
+public class StorageFormatReaderTest {
+
+	/**
+	 * One character at each read, the text searched spans more reads.
+	 */
+	private static class TricklingReader extends StringReader {
+
+		TricklingReader(String s) {
+			super(s);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return super.read(cbuf, off, Math.min(len, 1));
+		}
+
+	}
+
+	/**
+	 * The source of each top level node read.
+	 */
+	private static List<String> read(StorageFormatReader reader) {
+		List<String> read = new ArrayList<String>();
+		List<Node> nodes = null;
+		while ((nodes = reader.next()) != null) {
+			StringBuilder html = new StringBuilder();
+			for (Node node : nodes) {
+				html.append(node.outerHtml());
+			}
+			read.add(html.toString());
+		}
+		return read;
+	}
+
+	/**
+	 * The top level nodes read from storage, checked against a parse of the whole storage.
+	 */
+	private static List<String> readAndCompare(String storage) {
+		List<String> read = read(new StorageFormatReader(storage));
+		Document document = Jsoup.parseBodyFragment(storage);
+		document.outputSettings().prettyPrint(false);
+		List<String> parsed = new ArrayList<String>();
+		for (Node node : document.body().childNodes()) {
+			parsed.add(node.outerHtml());
+		}
+		assertEquals(parsed, read);
+		assertEquals(read, read(new StorageFormatReader(new TricklingReader(storage))));
+		return read;
+	}
+
+	@Test
+	public void textAndElements() {
+		assertEquals(Arrays.asList("Text ", "<p>a <strong>b</strong></p>", " more", "<h1>c</h1>"),
+				readAndCompare("Text <p>a <strong>b</strong></p> more<h1>c</h1>"));
+	}
+
+	@Test
+	public void cdata() {
+		String code = "<ac:structured-macro ac:name=\"code\"><ac:plain-text-body>"
+				+ "<![CDATA[if (a < b) { x = \"</p></ac:structured-macro></content>\"; }]]>"
+				+ "</ac:plain-text-body></ac:structured-macro>";
+		assertEquals(2, readAndCompare(code + "<p>after</p>").size());
+	}
+
+	@Test
+	public void comments() {
+		assertEquals(Arrays.asList("<!-- <p> </content> -->", "<p>a<!-- </p> --></p>"),
+				readAndCompare("<!-- <p> </content> --><p>a<!-- </p> --></p>"));
+	}
+
+	@Test
+	public void voidElements() {
+		assertEquals(Arrays.asList("<p>a<br>b<img src=\"i.png\"></p>", "<hr>", "<br>", "<p>c</p>"),
+				readAndCompare("<p>a<br>b<img src=\"i.png\"></p><hr><br /><p>c</p>"));
+	}
+
+	@Test
+	public void selfClosingElements() {
+		assertEquals(2, readAndCompare("<ac:image><ri:attachment ri:filename=\"a.png\" /></ac:image>"
+				+ "<ac:emoticon ac:name=\"smile\" />").size());
+	}
+
+	@Test
+	public void rawTextElements() {
+		assertEquals(Arrays.asList("<style>p > a { } </p><div></style>", "<script>if (a </b) {}</script>",
+				"<p>x</p>"),
+				readAndCompare("<style>p > a { } </p><div></STYLE><script>if (a </b) {}</script><p>x</p>"));
+	}
+
+	@Test
+	public void quotedGreaterThan() {
+		assertEquals(Arrays.asList("<a title=\"a > b\" href=\"x\">x</a>", "<p>y</p>"),
+				readAndCompare("<a title=\"a > b\" href=\"x\">x</a><p>y</p>"));
+	}
+
+	@Test
+	public void lessThanInText() {
+		assertEquals(Arrays.asList("a &lt; b ", "<p>x</p>"), readAndCompare("a < b <p>x</p>"));
+		assertEquals(Arrays.asList("<p>a &lt;3</p>", "b &lt;"), readAndCompare("<p>a <3</p>b <"));
+	}
+
+	@Test
+	public void pageFile() {
+		String page = "<page title=\"T\" id=\"1\">\n<wikiimages>\n</wikiimages>\n"
+				+ "<content><p>a</p><ac:plain-text-body><![CDATA[</content>]]></ac:plain-text-body><p>b</p></content>\n</page>";
+		List<String> read = read(StorageFormatReader.forPage(page));
+		assertEquals(3, read.size());
+		assertEquals("<p>b</p>", read.get(2));
+	}
+
+	@Test
+	public void pageFileReadInChunks() throws IOException {
+		String page = "<page title=\"T\" id=\"1\">\r\n<wikiimages>\r\n</wikiimages>\r\n"
+				+ "<content><p>a\r\nb\rc</p><!-- </content> --><p>d</p></content>\r\n</page>";
+		StorageFormatReader reader = StorageFormatReader.forPage(new TricklingReader(page));
+		assertEquals("<page title=\"T\" id=\"1\">\n<wikiimages>\n</wikiimages>\n", reader.getHeader());
+		assertEquals(Arrays.asList("<p>a\nb\nc</p>", "<!-- </content> -->", "<p>d</p>"), read(reader));
+	}
+
+	@Test
+	public void emptyContent() {
+		assertEquals(0, read(StorageFormatReader.forPage("<page>\n<content></content>\n</page>")).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void pageFileWithoutContent() {
+		StorageFormatReader.forPage("<page title=\"T\" id=\"1\">\n</page>");
+	}
+
+}
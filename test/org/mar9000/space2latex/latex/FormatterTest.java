@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.latex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mar9000.space2latex.PageDirectory;
+import org.mar9000.space2latex.PageLoader;
+import org.mar9000.space2latex.PageStore;
+import org.mar9000.space2latex.WikiPage;
+import org.mar9000.space2latex.WikiPages;
+import org.stringtemplate.v4.AutoIndentWriter;
+import org.stringtemplate.v4.ST;
+import org.stringtemplate.v4.STGroupFile;
+
+public class FormatterTest {
+
+	private static final int PAGES = 24;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static String title(int page) {
+		return "Page " + (page % PAGES);
+	}
+
+	/**
+	 * Pages linking each other, some of them included by more pages.
+	 */
+	private File writePages() throws IOException {
+		File dir = folder.newFolder();
+		PageStore store = new PageDirectory(dir);
+		for (int p = 0; p < PAGES; p++) {
+			StringBuilder content = new StringBuilder();
+			content.append("<p>Text of page " + p + " with 50% &amp; <strong>bold</strong> <em>em</em> org.mar9000.Name</p>");
+			content.append("<h2>Section " + p + "</h2>");
+			content.append("<ac:structured-macro ac:name=\"anchor\"><ac:parameter ac:name=\"\">a1</ac:parameter></ac:structured-macro>");
+			content.append("<p>see <ac:link><ri:page ri:content-title=\"" + title(p * 7 + 1) + "\" /></ac:link>");
+			content.append(" and <ac:link ac:anchor=\"a1\"><ri:page ri:content-title=\"" + title(p * 5 + 2) + "\" /></ac:link></p>");
+			content.append("<ul><li>one</li><li>two <span style=\"color: rgb(255,0,0);\">red</span></li></ul>");
+			content.append("<ac:structured-macro ac:name=\"code\"><ac:plain-text-body><![CDATA[code " + p + " <x>]]></ac:plain-text-body></ac:structured-macro>");
+			content.append("<table><tbody><tr><th>H</th></tr><tr><td>" + p + "</td></tr></tbody></table>");
+			// Pages 3 and 15 included, they include nothing.
+			if (p % 4 == 1) {
+				content.append("<ac:structured-macro ac:name=\"include\"><ac:parameter ac:name=\"\"><ac:link><ri:page ri:content-title=\""
+						+ title(p * 3) + "\" /></ac:link></ac:parameter></ac:structured-macro>");
+			}
+			content.append("<ac:structured-macro ac:name=\"info\"><ac:rich-text-body><p>info " + p + "</p></ac:rich-text-body></ac:structured-macro>");
+			String name = "page-" + WikiPage.getPageName(title(p)) + ".html";
+			store.write(name, Integer.toString(p), title(p), "<page title=\"" + title(p) + "\" id=\"" + p + "\">\n"
+					+ "<wikiimages>\n</wikiimages>\n<content>" + content + "</content>\n</page>");
+		}
+		return dir;
+	}
+
+	/**
+	 * The latex document of the pages as the format command writes it, chapters for one page
+	 * out of three, and the pages included.
+	 */
+	private static String format(File dir, boolean includeAll, int threads, List<String> included) throws IOException {
+		PageStore store = new PageDirectory(dir);
+		WikiPages pages = new WikiPages();
+		for (WikiPage page : new PageLoader(store, threads).load(store.list())) {
+			pages.put(page.title, page);
+		}
+		LatexDocument document = new LatexDocument("Test", "A", "2024", "http://wiki", "TST");
+		document.addDocumentPart(new TOC());
+		Part part = new Part("Part");
+		document.addDocumentPart(part);
+		for (int p = 0; p < PAGES; p += 3) {
+			document.addChapter(part, new Chapter(title(p)));
+		}
+		new Formatter(dir, pages, document).format(includeAll, threads);
+		for (int p = 0; p < PAGES; p++) {
+			if (pages.get(title(p)).alreadyIncluded)
+				included.add(title(p));
+		}
+		ST template = new STGroupFile("templates/default-latex-template.stg").getInstanceOf("document");
+		template.add("d", document);
+		StringWriter writer = new StringWriter();
+		template.write(new AutoIndentWriter(writer));
+		return writer.toString();
+	}
+
+	private void assertSameAsSequential(boolean includeAll) throws IOException {
+		File dir = writePages();
+		List<String> included = new ArrayList<String>();
+		String sequential = format(dir, includeAll, 1, included);
+		assertTrue(sequential.contains("info 21"));
+		for (int threads : new int[]{2, 4, 8}) {
+			List<String> parallelIncluded = new ArrayList<String>();
+			assertEquals("threads: " + threads, sequential, format(dir, includeAll, threads, parallelIncluded));
+			assertEquals("threads: " + threads, included, parallelIncluded);
+		}
+	}
+
+	@Test
+	public void parallelFormatIsSequentialFormat() throws IOException {
+		assertSameAsSequential(true);
+	}
+
+	@Test
+	public void parallelFormatOfChaptersIsSequentialFormat() throws IOException {
+		assertSameAsSequential(false);
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Marco Lombardo
+ * https://github.com/mar9000
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mar9000.space2latex.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class RetryPolicyTest {
+
+	@After
+	public void tearDown() {
+		RetryPolicy.configure(RetryPolicy.DEFAULT_MAX_ATTEMPTS, RetryPolicy.DEFAULT_BASE_DELAY,
+				RetryPolicy.DEFAULT_MAX_DELAY, RetryPolicy.DEFAULT_MAX_ELAPSED);
+	}
+
+	@Test
+	public void backoffDoublesWithinJitterUpToMaxDelay() {
+		RetryPolicy.configure(10, 100, 1000, 60 * 1000);
+		RetryPolicy.Retry retry = RetryPolicy.newRetry();
+		long[] expected = {100, 200, 400, 800, 1000, 1000};
+		for (int a = 0; a < expected.length; a++) {
+			long delay = retry.nextDelay(new SocketTimeoutException());
+			assertTrue("attempt " + (a + 1) + ": " + delay, delay >= expected[a] / 2 && delay <= expected[a]);
+		}
+		assertEquals(expected.length + 1, retry.getAttempts());
+	}
+
+	@Test
+	public void giveUpAfterMaxAttempts() {
+		RetryPolicy.configure(3, 1, 10, 60 * 1000);
+		RetryPolicy.Retry retry = RetryPolicy.newRetry();
+		int failures = RetryPolicy.getFailureCount();
+		assertTrue(retry.nextDelay(new IOException("first")) >= 0);
+		assertTrue(retry.nextDelay(new IOException("second")) >= 0);
+		assertEquals(-1, retry.nextDelay(new IOException("third")));
+		assertEquals("java.io.IOException: third", retry.getLastFailure());
+		assertEquals(failures + 1, RetryPolicy.getFailureCount());
+	}
+
+	@Test
+	public void giveUpBeyondMaxElapsed() {
+		RetryPolicy.configure(10, 1000, 1000, 100);
+		assertEquals(-1, RetryPolicy.newRetry().nextDelay(new IOException()));
+	}
+
+	@Test
+	public void parseRetryAfterSeconds() {
+		assertEquals(2000, RetryPolicy.parseRetryAfter("2"));
+		assertEquals(0, RetryPolicy.parseRetryAfter(" 0 "));
+		assertEquals(0, RetryPolicy.parseRetryAfter("-5"));
+		assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+		assertEquals(-1, RetryPolicy.parseRetryAfter(" "));
+		assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+	}
+
+	@Test
+	public void parseRetryAfterDate() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		long future = RetryPolicy.parseRetryAfter(format.format(new Date(System.currentTimeMillis() + 30 * 1000)));
+		assertTrue("future: " + future, future > 25 * 1000 && future <= 30 * 1000);
+		assertEquals(0, RetryPolicy.parseRetryAfter(format.format(new Date(System.currentTimeMillis() - 30 * 1000))));
+	}
+
+	@Test
+	public void retryAfterHeaderReplacesBackoff() throws IOException {
+		RetryPolicy.configure(5, 100, 1000, 60 * 1000);
+		HttpServer server = startServer();
+		try {
+			String url = "http://localhost:" + server.getAddress().getPort();
+			int retryAfterWaits = RetryPolicy.getRetryAfterCount();
+			assertEquals(3000, nextDelay(url + "/503/3"));
+			assertEquals(4000, nextDelay(url + "/429/4"));
+			assertEquals(retryAfterWaits + 2, RetryPolicy.getRetryAfterCount());
+			// Only sent with 429 and 503, the backoff is used otherwise.
+			long delay = nextDelay(url + "/500/2");
+			assertTrue("500: " + delay, delay >= 50 && delay <= 100);
+			assertEquals(retryAfterWaits + 2, RetryPolicy.getRetryAfterCount());
+			// Not retried, not counted as given up.
+			int failures = RetryPolicy.getFailureCount();
+			assertEquals(-1, nextDelay(url + "/404/2"));
+			assertEquals(failures, RetryPolicy.getFailureCount());
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	private static long nextDelay(String url) throws IOException {
+		HttpClient.Response response = HttpClient.get(url);
+		try {
+			return RetryPolicy.newRetry().nextDelay(response);
+		} finally {
+			response.close();
+		}
+	}
+
+	/**
+	 * Answer /status/seconds with the status and a Retry-After header of the seconds.
+	 */
+	private static HttpServer startServer() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String[] path = exchange.getRequestURI().getPath().split("/");
+				int status = Integer.parseInt(path[1]);
+				exchange.getResponseHeaders().set("Retry-After", path[2]);
+				byte[] body = "error".getBytes("UTF-8");
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		return server;
+	}
+
+}